@@ -0,0 +1,28 @@
+package com.hmdp.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class ExecutorConfig {
+
+    /**
+     * 商铺详情聚合查询的线程池，队列满时直接拒绝，对应部分返回空；应用关闭时随容器一起关闭
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService shopDetailExecutor() {
+        return new ThreadPoolExecutor(
+                8, 8, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(256),
+                r -> {
+                    Thread thread = new Thread(r, "shop-detail");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+}
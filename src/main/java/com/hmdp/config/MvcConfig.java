@@ -1,13 +1,18 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.LoginUserCache;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SignedTokenManager;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -15,6 +20,18 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private LoginUserCache loginUserCache;
+
+    @Resource
+    private SignedTokenManager signedTokenManager;
+
+    @Value("${hmdp.login.refresh-ratio:0.5}")
+    private double refreshRatio;
+
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -26,6 +43,10 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login"
                 ).order(1);
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        // 管理接口，/shop/**的放行规则不适用
+        registry.addInterceptor(new AdminInterceptor(adminIds))
+                .addPathPatterns("/shop/import")
+                .order(1);
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, loginUserCache, signedTokenManager, refreshRatio)).addPathPatterns("/**").order(0);
     }
 }
@@ -0,0 +1,39 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.LoginUserCache;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SignedTokenManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SHOP_SEARCH_CHANNEL;
+
+@Configuration
+public class RedisConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory factory,
+                                                                       LoginUserCache loginUserCache,
+                                                                       SignedTokenManager signedTokenManager,
+                                                                       ShopGeoIndex shopGeoIndex,
+                                                                       ShopSearchIndex shopSearchIndex) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        //登录用户本地缓存失效通知
+        container.addMessageListener(loginUserCache, new ChannelTopic(LOGIN_INVALIDATE_CHANNEL));
+        //签名令牌吊销通知
+        container.addMessageListener(signedTokenManager, new ChannelTopic(LOGIN_REVOKE_CHANNEL));
+        //商铺坐标变更通知
+        container.addMessageListener(shopGeoIndex, new ChannelTopic(SHOP_GEO_CHANNEL));
+        //商铺名称变更通知
+        container.addMessageListener(shopSearchIndex, new ChannelTopic(SHOP_SEARCH_CHANNEL));
+        return container;
+    }
+}
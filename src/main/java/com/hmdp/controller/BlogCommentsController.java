@@ -1,9 +1,13 @@
 package com.hmdp.controller;
 
 
-import org.springframework.web.bind.annotation.RequestMapping;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.service.IBlogCommentsService;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.*;
 
-import org.springframework.web.bind.annotation.RestController;
+import javax.annotation.Resource;
 
 /**
  * <p>
@@ -17,4 +21,24 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/blog-comments")
 public class BlogCommentsController {
 
+    @Resource
+    private IBlogCommentsService blogCommentsService;
+
+    @PostMapping
+    public Result saveComment(@RequestBody BlogComments comment) {
+        comment.setUserId(UserHolder.getUser().getId());
+        return blogCommentsService.saveComment(comment);
+    }
+
+    @GetMapping("/of/blog")
+    public Result queryCommentsOfBlog(@RequestParam("blogId") Long blogId,
+                                      @RequestParam(value = "cursor", required = false) String cursor) {
+        return blogCommentsService.queryCommentsOfBlog(blogId, cursor);
+    }
+
+    @GetMapping("/replies")
+    public Result queryReplies(@RequestParam("parentId") Long parentId,
+                               @RequestParam(value = "cursor", required = false) String cursor) {
+        return blogCommentsService.queryReplies(parentId, cursor);
+    }
 }
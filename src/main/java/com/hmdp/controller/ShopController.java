@@ -4,12 +4,24 @@ package com.hmdp.controller;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Shop;
+import com.hmdp.service.IBlogService;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.PageCursor;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UvCounter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 /**
  * <p>
@@ -19,23 +31,99 @@ import javax.annotation.Resource;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @RestController
 @RequestMapping("/shop")
 public class ShopController {
 
+    //每个部分的超时时间，毫秒
+    private static final long DETAIL_PART_TIMEOUT = 300L;
+    //详情页展示的探店笔记数
+    private static final int DETAIL_BLOG_COUNT = 3;
+
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private UvCounter uvCounter;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IBlogService blogService;
+
+    //商铺详情聚合查询的线程池，见ExecutorConfig
+    @Resource
+    private ExecutorService shopDetailExecutor;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
+    public Result queryShopById(@PathVariable("id") Long id, HttpServletRequest request) {
+        uvCounter.record(UvCounter.TYPE_SHOP, id, request);
         return shopService.queryById(id);
     }
 
+    /**
+     * 商铺详情页聚合：商铺信息、优惠券、热门探店笔记并行查询
+     * 每部分单独超时，超时或失败的部分返回null并记录在missing中
+     * @param id 商铺id
+     * @return shop、vouchers、blogs、missing
+     */
+    @GetMapping("/{id}/detail")
+    public Result queryShopDetail(@PathVariable("id") Long id, HttpServletRequest request) {
+        uvCounter.record(UvCounter.TYPE_SHOP, id, request);
+        // 线程池中取不到当前用户，在请求线程中取出后传入
+        UserDTO user = UserHolder.getUser();
+        Map<String, Future<Object>> parts = new LinkedHashMap<>();
+        parts.put("shop", submitDetailPart(() -> shopService.queryById(id).getData()));
+        parts.put("vouchers", submitDetailPart(() -> voucherService.queryVoucherOfShop(id).getData()));
+        parts.put("blogs", submitDetailPart(() -> blogService.queryTopBlogsOfShop(id, DETAIL_BLOG_COUNT, user)));
+        // 所有部分共用同一个截止时间，总耗时约等于最慢的部分
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DETAIL_PART_TIMEOUT);
+        Map<String, Object> detail = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        parts.forEach((name, future) -> {
+            try {
+                detail.put(name, future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                missing.add(name);
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("商铺详情部分查询失败，shopId：{}，部分：{}", id, name, e instanceof ExecutionException ? e.getCause() : e);
+                future.cancel(true);
+                missing.add(name);
+            }
+        });
+        detail.put("missing", missing);
+        return Result.ok(detail);
+    }
+
+    private Future<Object> submitDetailPart(Supplier<Object> supplier) {
+        try {
+            return shopDetailExecutor.submit(supplier::get);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<Object> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    /**
+     * 查询商铺当天和最近7天的UV
+     * @param id 商铺id
+     * @return daily、weekly
+     */
+    @GetMapping("/{id}/uv")
+    public Result queryShopUv(@PathVariable("id") Long id) {
+        return Result.ok(uvCounter.count(UvCounter.TYPE_SHOP, id));
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -43,10 +131,16 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
+    }
+
+    /**
+     * 批量导入商铺，请求体为商铺JSON数组或带表头的CSV（Content-Type: text/csv）
+     * @return 导入报告，包含失败的行和耗时
+     */
+    @PostMapping("/import")
+    public Result importShops(HttpServletRequest request) throws IOException {
+        return shopService.importShops(request.getInputStream(), request.getContentType());
     }
 
     /**
@@ -59,36 +153,84 @@ public class ShopController {
         return shopService.updateShop(shop);
     }
 
+    /**
+     * 商铺排行榜
+     * @param typeId 商铺类型
+     * @param metric 排序指标：sold销量、score评分、comments评价数
+     * @param current 页码
+     * @return 商铺列表
+     */
+    @GetMapping("/rank")
+    public Result queryShopRank(
+            @RequestParam("typeId") Long typeId,
+            @RequestParam(value = "metric", defaultValue = "sold") String metric,
+            @RequestParam(value = "current", defaultValue = "1") Integer current
+    ) {
+        return shopService.queryShopRank(typeId, metric, current);
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param cursor 游标，传入时（第一页传空串）按游标分页，返回下一页游标
+     * @param x 经度，和纬度同时传入时按距离排序
+     * @param y 纬度
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y
     ) {
+        if (x != null && y != null) {
+            // 按距离查询
+            return shopService.queryShopByLocation(typeId.longValue(), current, x, y);
+        }
+        if (cursor != null) {
+            // 按id游标分页，走(type_id, id)索引
+            return PageCursor.page(cursor, SystemConstants.DEFAULT_PAGE_SIZE, Shop::getId,
+                    (lastId, limit) -> shopService.query()
+                            .eq("type_id", typeId)
+                            .gt(lastId != null, "id", lastId)
+                            .orderByAsc("id")
+                            .last("LIMIT " + limit)
+                            .list(), null);
+        }
         // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByType(typeId.longValue(), current);
     }
 
     /**
      * 根据商铺名称关键字分页查询商铺信息
      * @param name 商铺名称关键字
      * @param current 页码
+     * @param cursor 游标，传入时（第一页传空串）按游标分页，返回下一页游标
      * @return 商铺列表
      */
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
+        if (StrUtil.isNotBlank(name) && cursor == null) {
+            // 关键字搜索走本地倒排索引
+            return shopService.searchShop(name, current);
+        }
+        if (cursor != null) {
+            // 按id游标分页，从上一页末尾继续扫描，不再跳过前面的行
+            return PageCursor.page(cursor, SystemConstants.MAX_PAGE_SIZE, Shop::getId,
+                    (lastId, limit) -> shopService.query()
+                            .like(StrUtil.isNotBlank(name), "name", name)
+                            .gt(lastId != null, "id", lastId)
+                            .orderByAsc("id")
+                            .last("LIMIT " + limit)
+                            .list(), null);
+        }
         // 根据类型分页查询
         Page<Shop> page = shopService.query()
                 .like(StrUtil.isNotBlank(name), "name", name)
@@ -1,19 +1,33 @@
 package com.hmdp.controller;
 
 
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
+import com.hmdp.service.ISignService;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VerifyCodeClient;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_USER_INFO_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 
 /**
  * <p>
@@ -34,6 +48,15 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private VerifyCodeClient verifyCodeClient;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ISignService signService;
+
     /**
      * 发送手机验证码
      */
@@ -42,6 +65,14 @@ public class UserController {
         return userService.sendCode(phone, session);
     }
 
+    /**
+     * 验证码发送和校验统计
+     */
+    @GetMapping("code/metrics")
+    public Result codeMetrics() {
+        return Result.ok(verifyCodeClient.metrics());
+    }
+
     /**
      * 登录功能
      * @param loginForm 登录参数，包含手机号、验证码；或者手机号、密码
@@ -57,9 +88,8 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(HttpServletRequest request){
+        return userService.logout(request.getHeader("authorization"));
     }
 
     @GetMapping("/me")
@@ -68,10 +98,19 @@ public class UserController {
         return Result.ok(user);
     }
 
+    /**
+     * 修改个人资料（昵称、头像）
+     */
+    @PutMapping("/me")
+    public Result updateMe(@RequestBody UserDTO userDTO, HttpServletRequest request){
+        return userService.updateMe(request.getHeader("authorization"), userDTO);
+    }
+
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
         // 查询详情
-        UserInfo info = userInfoService.getById(userId);
+        UserInfo info = cacheClient.queryWithPassThrough(CACHE_USER_INFO_KEY, userId, UserInfo.class,
+                userInfoService::getById, CACHE_USER_TTL, TimeUnit.MINUTES);
         if (info == null) {
             // 没有详情，应该是第一次查看详情
             return Result.ok();
@@ -81,4 +120,45 @@ public class UserController {
         // 返回
         return Result.ok(info);
     }
+
+    /**
+     * 今日签到
+     */
+    @PostMapping("/sign")
+    public Result sign(){
+        return signService.sign();
+    }
+
+    /**
+     * 补签本月的某一天
+     * @param date 补签日期，yyyy-MM-dd
+     */
+    @PostMapping("/sign/backfill")
+    public Result backfill(@RequestParam("date") @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate date){
+        return signService.backfill(date);
+    }
+
+    /**
+     * 连续签到天数
+     */
+    @GetMapping("/sign/count")
+    public Result signCount(){
+        return signService.signCount();
+    }
+
+    /**
+     * 某月签到统计
+     * @param month 月份，yyyyMM，默认本月
+     */
+    @GetMapping("/sign/month")
+    public Result signOfMonth(@RequestParam(value = "month", required = false) String month){
+        if (StrUtil.isBlank(month)) {
+            return signService.signOfMonth(YearMonth.now());
+        }
+        try {
+            return signService.signOfMonth(YearMonth.parse(month, DateTimeFormatter.ofPattern("yyyyMM")));
+        } catch (DateTimeParseException e) {
+            return Result.fail("月份格式错误！");
+        }
+    }
 }
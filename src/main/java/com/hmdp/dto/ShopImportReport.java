@@ -0,0 +1,27 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+public class ShopImportReport {
+    private int total;
+    private int imported;
+    private int failed;
+    private long elapsedMillis;
+    private long rowsPerSecond;
+    //失败的行，最多记录前1000条
+    private List<RowError> errors = new ArrayList<>();
+    //已写入数据库但缓存、索引同步失败的批次，row为批次的首行，等待读取时重建和定时校准
+    private List<RowError> syncErrors = new ArrayList<>();
+
+    @Data
+    @AllArgsConstructor
+    public static class RowError {
+        private int row;
+        private String message;
+    }
+}
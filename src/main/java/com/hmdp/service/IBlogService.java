@@ -1,8 +1,12 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -13,4 +17,25 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IBlogService extends IService<Blog> {
 
+    Result saveBlog(Blog blog);
+
+    Result queryBlogById(Long id);
+
+    Result queryHotBlog(Integer current);
+
+    List<Blog> queryTopBlogsOfShop(Long shopId, int count, UserDTO user);
+
+    Result likeBlog(Long id);
+
+    Long queryCreateTime(Long id);
+
+    Result queryBlogLikes(Long id, Integer count);
+
+    Result queryBlogOfFollow(Long max, Integer offset);
+
+    void fillAuthors(List<Blog> blogs);
+
+    void fillLikeState(List<Blog> blogs);
+
+    void fillLikeState(List<Blog> blogs, UserDTO user);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.io.InputStream;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,21 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
+
+    Result importShops(InputStream in, String contentType);
+
+    Result queryShopByType(Long typeId, Integer current);
+
+    Result queryShopByLocation(Long typeId, Integer current, Double x, Double y);
+
+    Result searchShop(String name, Integer current);
+
+    Result queryShopRank(Long typeId, String metric, Integer current);
+
+    void incrSold(Long shopId);
+
+    void incrComments(Long shopId);
 }
@@ -0,0 +1,24 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Sign;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ */
+public interface ISignService extends IService<Sign> {
+
+    Result sign();
+
+    Result backfill(LocalDate date);
+
+    Result signCount();
+
+    Result signOfMonth(YearMonth month);
+}
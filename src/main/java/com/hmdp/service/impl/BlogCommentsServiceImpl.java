@@ -1,11 +1,26 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.BlogComments;
 import com.hmdp.mapper.BlogCommentsMapper;
 import com.hmdp.service.IBlogCommentsService;
+import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.PageCursor;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserProfileCache;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.BLOG_COMMENTS_DELTA_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +32,104 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogCommentsServiceImpl extends ServiceImpl<BlogCommentsMapper, BlogComments> implements IBlogCommentsService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private UserProfileCache userProfileCache;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Override
+    public Result saveComment(BlogComments comment) {
+        if (comment.getBlogId() == null || StrUtil.isBlank(comment.getContent())) {
+            return Result.fail("评论内容不能为空！");
+        }
+        // 博文不存在时不保存，也不累加评论数增量
+        if (blogService.queryCreateTime(comment.getBlogId()) == null) {
+            return Result.fail("笔记不存在");
+        }
+        Long parentId = comment.getParentId() == null ? 0L : comment.getParentId();
+        Long answerId = comment.getAnswerId() == null ? 0L : comment.getAnswerId();
+        if (parentId != 0) {
+            // 回复必须挂在同一篇博文的一级评论下
+            BlogComments parent = getById(parentId);
+            if (parent == null || !comment.getBlogId().equals(parent.getBlogId()) || parent.getParentId() != 0) {
+                return Result.fail("回复的评论不存在！");
+            }
+            if (answerId == 0) {
+                answerId = parentId;
+            }
+        }
+        comment.setParentId(parentId).setAnswerId(answerId).setLiked(0).setStatus(null);
+        save(comment);
+        // 评论数先累加到redis，定时批量写回tb_blog
+        stringRedisTemplate.opsForHash().increment(BLOG_COMMENTS_DELTA_KEY, comment.getBlogId().toString(), 1);
+        return Result.ok(comment.getId());
+    }
+
+    /**
+     * 一级评论按id倒序游标分页，每条附带最早的几条回复
+     */
+    @Override
+    public Result queryCommentsOfBlog(Long blogId, String cursor) {
+        return PageCursor.page(cursor, SystemConstants.MAX_PAGE_SIZE, BlogComments::getId,
+                (lastId, limit) -> query()
+                        .eq("blog_id", blogId).eq("parent_id", 0)
+                        .lt(lastId != null, "id", lastId)
+                        .and(w -> w.isNull("status").or().lt("status", 2))
+                        .orderByDesc("id")
+                        .last("LIMIT " + limit)
+                        .list(),
+                this::fillReplyPreview);
+    }
+
+    /**
+     * 一次查询取出所有一级评论的回复预览，并填充评论和回复的作者
+     */
+    private void fillReplyPreview(List<BlogComments> comments) {
+        List<Long> parentIds = comments.stream().map(BlogComments::getId).collect(Collectors.toList());
+        Map<Long, List<BlogComments>> replies = getBaseMapper()
+                .queryReplyPreview(parentIds, SystemConstants.REPLY_PREVIEW_SIZE).stream()
+                .collect(Collectors.groupingBy(BlogComments::getParentId));
+        List<BlogComments> all = new ArrayList<>(comments);
+        for (BlogComments comment : comments) {
+            List<BlogComments> preview = replies.getOrDefault(comment.getId(), Collections.emptyList());
+            comment.setReplies(preview);
+            all.addAll(preview);
+        }
+        fillAuthors(all);
+    }
+
+    /**
+     * 某条一级评论下的回复按id正序游标分页
+     */
+    @Override
+    public Result queryReplies(Long parentId, String cursor) {
+        return PageCursor.page(cursor, SystemConstants.MAX_PAGE_SIZE, BlogComments::getId,
+                (lastId, limit) -> query()
+                        .eq("parent_id", parentId)
+                        .gt(lastId != null, "id", lastId)
+                        .and(w -> w.isNull("status").or().lt("status", 2))
+                        .orderByAsc("id")
+                        .last("LIMIT " + limit)
+                        .list(),
+                this::fillAuthors);
+    }
+
+    private void fillAuthors(List<BlogComments> comments) {
+        if (CollUtil.isEmpty(comments)) {
+            return;
+        }
+        Map<Long, UserDTO> users = userProfileCache.getUsers(
+                comments.stream().map(BlogComments::getUserId).collect(Collectors.toSet()));
+        comments.forEach(comment -> {
+            UserDTO user = users.get(comment.getUserId());
+            if (user != null) {
+                comment.setName(user.getNickName());
+                comment.setIcon(user.getIcon());
+            }
+        });
+    }
 }
@@ -1,11 +1,43 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
+import com.hmdp.entity.Follow;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
+import com.hmdp.service.IFollowService;
+import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CounterDeltaFlusher;
+import com.hmdp.utils.RedisWorker;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserProfileCache;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +49,468 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    private static final DefaultRedisScript<List> LIKE_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("blog_like.lua"));
+        LIKE_SCRIPT.setResultType(List.class);
+    }
+
+    //批量写入时每批的条数
+    private static final int BATCH_SIZE = 500;
+    //商铺热门笔记按点赞数重新排序时的候选倍数
+    private static final int TOP_BLOG_CANDIDATE_FACTOR = 3;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private UserProfileCache userProfileCache;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CounterDeltaFlusher counterDeltaFlusher;
+
+    //关注流合并结果的短暂缓存，只缓存博文id
+    private final TimedCache<String, ScrollResult> feedPageCache =
+            CacheUtil.newTimedCache(TimeUnit.SECONDS.toMillis(FEED_PAGE_CACHE_TTL));
+
+    @PostConstruct
+    public void init() {
+        feedPageCache.schedulePrune(TimeUnit.SECONDS.toMillis(FEED_PAGE_CACHE_TTL));
+    }
+
+    @Override
+    public Result queryBlogById(Long id) {
+        Blog blog = getById(id);
+        if (blog == null) {
+            return Result.fail("笔记不存在");
+        }
+        List<Blog> blogs = Collections.singletonList(blog);
+        fillAuthors(blogs);
+        fillLikeState(blogs);
+        return Result.ok(blog);
+    }
+
+    @Override
+    public Result saveBlog(Blog blog) {
+        save(blog);
+        // 清除新id上可能缓存的空值
+        stringRedisTemplate.delete(CACHE_BLOG_CREATED_KEY + blog.getId());
+        long now = System.currentTimeMillis();
+        // 新博文以发布时间进入热度榜
+        stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, blog.getId().toString(), hotUnits(now));
+        // 推送到粉丝收件箱
+        pushToFollowers(blog.getUserId(), blog.getId(), now);
+        // 探店笔记计入商铺评价数
+        if (blog.getShopId() != null) {
+            shopService.incrComments(blog.getShopId());
+        }
+        return Result.ok(blog.getId());
+    }
+
+    /**
+     * 推拉结合：粉丝数不超过阈值的作者写扩散到粉丝收件箱；
+     * 超过阈值的大V只写自己的发件箱，读取时再合并
+     */
+    private void pushToFollowers(Long authorId, Long blogId, long timestamp) {
+        String member = blogId.toString();
+        long fans = followService.queryFansCount(authorId);
+        if (fans > FEED_PUSH_THRESHOLD) {
+            // 一旦成为大V就一直走拉模式，保证发件箱中的历史博文仍能被读到
+            String outbox = FEED_OUTBOX_KEY + authorId;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.zAdd(outbox, timestamp, member);
+                conn.zRemRange(outbox, 0, -FEED_MAX - 1);
+                conn.sAdd(FEED_BIG_KEY, authorId.toString());
+                return null;
+            });
+            return;
+        }
+        if (fans == 0) {
+            return;
+        }
+        // 写扩散：pipeline把博文id写入每个粉丝的收件箱，并截断到FEED_MAX条
+        List<Follow> follows = followService.query().select("user_id").eq("follow_user_id", authorId).list();
+        for (List<Follow> batch : CollUtil.split(follows, BATCH_SIZE)) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Follow follow : batch) {
+                    String key = FEED_KEY + follow.getUserId();
+                    conn.zAdd(key, timestamp, member);
+                    conn.zRemRange(key, 0, -FEED_MAX - 1);
+                }
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        Long userId = UserHolder.getUser().getId();
+        // 合并结果短暂缓存，翻页或刷新时不必重复合并
+        String pageKey = userId + ":" + max + ":" + offset;
+        ScrollResult page = feedPageCache.get(pageKey, false);
+        if (page == null) {
+            page = mergeFeed(userId, max, offset);
+            feedPageCache.put(pageKey, page);
+        }
+        @SuppressWarnings("unchecked")
+        List<Blog> blogs = listByIdsInOrder((List<Long>) page.getList());
+        fillAuthors(blogs);
+        fillLikeState(blogs);
+        ScrollResult r = new ScrollResult();
+        r.setList(blogs);
+        r.setMinTime(page.getMinTime());
+        r.setOffset(page.getOffset());
+        return Result.ok(r);
+    }
+
+    /**
+     * 收件箱和关注的大V发件箱按时间戳多路归并，返回的list为博文id
+     * 滚动分页：score不大于max，跳过offset条与上一页最后时间戳相同的记录
+     */
+    private ScrollResult mergeFeed(Long userId, Long max, Integer offset) {
+        List<String> sources = new ArrayList<>();
+        sources.add(FEED_KEY + userId);
+        queryFollowedBigAuthors(userId).forEach(id -> sources.add(FEED_OUTBOX_KEY + id));
+        // 每个来源最多取offset + 一页条数，pipeline一次取回
+        long limit = (long) offset + SystemConstants.MAX_PAGE_SIZE;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            sources.forEach(key -> conn.zRevRangeByScoreWithScores(key, 0, max, 0, limit));
+            return null;
+        });
+        // 按(时间戳, 成员)倒序归并，与redis的ZREVRANGEBYSCORE顺序一致
+        Comparator<FeedCursor> order = Comparator
+                .comparingDouble((FeedCursor c) -> c.score()).reversed()
+                .thenComparing(FeedCursor::member, Comparator.reverseOrder());
+        PriorityQueue<FeedCursor> queue = new PriorityQueue<>(order);
+        for (Object result : results) {
+            FeedCursor cursor = new FeedCursor((Collection<?>) result);
+            if (cursor.hasCurrent()) {
+                queue.add(cursor);
+            }
+        }
+        List<Long> ids = new ArrayList<>(SystemConstants.MAX_PAGE_SIZE);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        long minTime = max;
+        int os = offset;
+        while (!queue.isEmpty() && ids.size() < SystemConstants.MAX_PAGE_SIZE) {
+            FeedCursor cursor = queue.poll();
+            String member = cursor.member();
+            long time = (long) cursor.score();
+            cursor.advance();
+            if (cursor.hasCurrent()) {
+                queue.add(cursor);
+            }
+            // 作者转为大V前推送过的博文可能同时出现在收件箱和发件箱
+            if (!seen.add(member)) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            ids.add(Long.valueOf(member));
+            if (time == minTime) {
+                os++;
+            } else {
+                minTime = time;
+                os = 1;
+            }
+        }
+        ScrollResult r = new ScrollResult();
+        r.setList(ids);
+        r.setMinTime(minTime);
+        r.setOffset(os);
+        return r;
+    }
+
+    /**
+     * 当前用户关注的大V
+     */
+    private List<Long> queryFollowedBigAuthors(Long userId) {
+        // 关注集合与大V集合求交集
+        return followService.queryFollowsIn(userId, FEED_BIG_KEY);
+    }
+
+    /**
+     * 单个来源的归并游标
+     */
+    private static class FeedCursor {
+        private final List<Object> tuples;
+        private int index;
+
+        FeedCursor(Collection<?> tuples) {
+            this.tuples = tuples == null ? Collections.emptyList() : new ArrayList<>(tuples);
+        }
+
+        boolean hasCurrent() {
+            return index < tuples.size();
+        }
+
+        void advance() {
+            index++;
+        }
+
+        String member() {
+            Object tuple = tuples.get(index);
+            if (tuple instanceof StringRedisConnection.StringTuple) {
+                return ((StringRedisConnection.StringTuple) tuple).getValueAsString();
+            }
+            return String.valueOf(((ZSetOperations.TypedTuple<?>) tuple).getValue());
+        }
+
+        double score() {
+            Object tuple = tuples.get(index);
+            if (tuple instanceof StringRedisConnection.StringTuple) {
+                return ((StringRedisConnection.StringTuple) tuple).getScore();
+            }
+            return ((ZSetOperations.TypedTuple<?>) tuple).getScore();
+        }
+    }
+
+    @Override
+    public Result queryHotBlog(Integer current) {
+        // 从热度榜分页取id
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        long end = start + SystemConstants.MAX_PAGE_SIZE - 1;
+        Set<String> ids = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, start, end);
+        if (CollUtil.isEmpty(ids) && current == 1 && rebuildHotBlogs()) {
+            ids = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, start, end);
+        }
+        if (CollUtil.isEmpty(ids)) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 批量查询博文，按榜单顺序返回
+        List<Blog> records = listByIdsInOrder(ids.stream().map(Long::valueOf).collect(Collectors.toList()));
+        fillAuthors(records);
+        fillLikeState(records);
+        return Result.ok(records);
+    }
+
+    /**
+     * 商铺点赞数最高的几篇探店笔记，走(shop_id, liked)索引
+     * 数据库中的点赞数由定时任务写回，会落后于redis；多取一些候选，叠加增量后重新排序
+     * 在线程池中调用时UserHolder为空，当前用户由调用方传入
+     */
+    @Override
+    public List<Blog> queryTopBlogsOfShop(Long shopId, int count, UserDTO user) {
+        List<Blog> blogs = query().eq("shop_id", shopId)
+                .orderByDesc("liked")
+                .last("LIMIT " + count * TOP_BLOG_CANDIDATE_FACTOR)
+                .list();
+        fillLikeState(blogs, user);
+        blogs.sort(Comparator.comparing(Blog::getLiked, Comparator.nullsLast(Comparator.reverseOrder())));
+        List<Blog> top = new ArrayList<>(blogs.subList(0, Math.min(count, blogs.size())));
+        fillAuthors(top);
+        return top;
+    }
+
+    /**
+     * 批量查询博文并保持ids的顺序，已删除的博文被跳过
+     */
+    private List<Blog> listByIdsInOrder(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, Blog> blogMap = listByIds(ids).stream()
+                .collect(Collectors.toMap(Blog::getId, b -> b));
+        return ids.stream()
+                .map(blogMap::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 热度榜不存在时从数据库重建，点赞时间未知，按发布时间计算
+     * @return 是否执行了重建
+     */
+    private boolean rebuildHotBlogs() {
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+            return false;
+        }
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_BLOG_HOT_KEY, "1", LOCK_BLOG_HOT_TTL, TimeUnit.SECONDS);
+        if (!BooleanUtil.isTrue(locked)) {
+            return false;
+        }
+        try {
+            List<Blog> blogs = query().select("id", "liked", "create_time").list();
+            Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+            for (Blog blog : blogs) {
+                long created = blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+                // log2(2^t * (1 + liked))
+                double score = hotUnits(created) + Math.log(1 + liked) / Math.log(2);
+                tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), score));
+                if (tuples.size() >= BATCH_SIZE) {
+                    stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, tuples);
+                    tuples = new HashSet<>();
+                }
+            }
+            if (!tuples.isEmpty()) {
+                stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, tuples);
+            }
+            trimHotBlogs();
+            return true;
+        } finally {
+            stringRedisTemplate.delete(LOCK_BLOG_HOT_KEY);
+        }
+    }
+
+    /**
+     * 热度榜只保留前BLOG_HOT_MAX条
+     */
+    @Scheduled(fixedDelay = 60000L)
+    public void trimHotBlogs() {
+        stringRedisTemplate.opsForZSet().removeRange(BLOG_HOT_KEY, 0, -BLOG_HOT_MAX - 1);
+    }
+
+    /**
+     * 时间换算成热度单位：距起始时间经过了多少个半衰期
+     */
+    private static double hotUnits(long epochMillis) {
+        return (epochMillis / 1000.0 - RedisWorker.BEGIN_TIMESTAMP) / BLOG_HOT_HALF_LIFE;
+    }
+
+    @Override
+    public Result likeBlog(Long id) {
+        Long created = queryCreateTime(id);
+        if (created == null) {
+            return Result.fail("笔记不存在");
+        }
+        Long userId = UserHolder.getUser().getId();
+        // 切换点赞状态并更新热度榜，点赞数增量由定时任务写回数据库
+        List<Object> result = stringRedisTemplate.execute(
+                LIKE_SCRIPT,
+                Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKED_DELTA_KEY, BLOG_HOT_KEY),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString(),
+                String.valueOf(RedisWorker.BEGIN_TIMESTAMP), BLOG_HOT_HALF_LIFE.toString(), created.toString()
+        );
+        boolean liked = result != null && Long.valueOf(1L).equals(result.get(0));
+        return Result.ok(liked);
+    }
+
+    /**
+     * 查询博文发布时间(毫秒)，博文不存在返回null
+     * 发布时间不会变化，缓存在redis中，不存在的id缓存空值
+     */
+    @Override
+    public Long queryCreateTime(Long id) {
+        String key = CACHE_BLOG_CREATED_KEY + id;
+        String cached = stringRedisTemplate.opsForValue().get(key);
+        if (cached != null) {
+            return cached.isEmpty() ? null : Long.valueOf(cached);
+        }
+        Blog blog = query().select("id", "create_time").eq("id", id).one();
+        if (blog == null) {
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        long created = blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        stringRedisTemplate.opsForValue().set(key, String.valueOf(created), CACHE_BLOG_CREATED_TTL, TimeUnit.MINUTES);
+        return created;
+    }
+
+    @Override
+    public Result queryBlogLikes(Long id, Integer count) {
+        int top = Math.min(Math.max(count, 1), SystemConstants.MAX_PAGE_SIZE);
+        // 最早点赞的前N个用户
+        Set<String> ids = stringRedisTemplate.opsForZSet().range(BLOG_LIKED_KEY + id, 0, top - 1);
+        if (CollUtil.isEmpty(ids)) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> userIds = ids.stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, UserDTO> users = userProfileCache.getUsers(userIds);
+        List<UserDTO> userDTOS = userIds.stream()
+                .map(users::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        return Result.ok(userDTOS);
+    }
+
+    /**
+     * 批量填充作者昵称和头像
+     */
+    @Override
+    public void fillAuthors(List<Blog> blogs) {
+        Map<Long, UserDTO> users = userProfileCache.getUsers(
+                blogs.stream().map(Blog::getUserId).collect(Collectors.toList()));
+        blogs.forEach(blog -> {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        });
+    }
+
+    /**
+     * 填充当前用户的点赞状态，并叠加尚未写回数据库的点赞数、评论数增量，一次pipeline完成
+     */
+    @Override
+    public void fillLikeState(List<Blog> blogs) {
+        fillLikeState(blogs, UserHolder.getUser());
+    }
+
+    /**
+     * 同上，用户由调用方传入，未登录时为null
+     */
+    @Override
+    public void fillLikeState(List<Blog> blogs, UserDTO user) {
+        if (CollUtil.isEmpty(blogs)) {
+            return;
+        }
+        String[] blogIds = blogs.stream().map(blog -> blog.getId().toString()).toArray(String[]::new);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            if (user != null) {
+                String member = user.getId().toString();
+                blogs.forEach(blog -> conn.zScore(BLOG_LIKED_KEY + blog.getId(), member));
+            }
+            conn.hMGet(BLOG_LIKED_DELTA_KEY, blogIds);
+            conn.hMGet(BLOG_COMMENTS_DELTA_KEY, blogIds);
+            return null;
+        });
+        int offset = 0;
+        if (user != null) {
+            for (Blog blog : blogs) {
+                blog.setIsLike(results.get(offset++) != null);
+            }
+        } else {
+            blogs.forEach(blog -> blog.setIsLike(false));
+        }
+        List<?> likedDeltas = (List<?>) results.get(offset);
+        List<?> commentsDeltas = (List<?>) results.get(offset + 1);
+        for (int i = 0; i < blogs.size(); i++) {
+            Blog blog = blogs.get(i);
+            blog.setLiked(applyDelta(blog.getLiked(), likedDeltas.get(i)));
+            blog.setComments(applyDelta(blog.getComments(), commentsDeltas.get(i)));
+        }
+    }
+
+    private static Integer applyDelta(Integer value, Object delta) {
+        if (delta == null) {
+            return value;
+        }
+        int base = value == null ? 0 : value;
+        return Math.max(base + Integer.parseInt(delta.toString()), 0);
+    }
+
+    /**
+     * 定时把点赞数、评论数增量批量合并到tb_blog
+     */
+    @Scheduled(fixedDelay = 5000L)
+    public void flushCounterDeltas() {
+        counterDeltaFlusher.flush(BLOG_LIKED_DELTA_KEY, getBaseMapper()::incrLiked);
+        counterDeltaFlusher.flush(BLOG_COMMENTS_DELTA_KEY, getBaseMapper()::incrComments);
+    }
 }
@@ -1,11 +1,36 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserProfileCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -14,7 +39,259 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
+    private static final DefaultRedisScript<Long> FOLLOW_COUNT_SCRIPT;
+    static {
+        FOLLOW_COUNT_SCRIPT = new DefaultRedisScript<>();
+        FOLLOW_COUNT_SCRIPT.setLocation(new ClassPathResource("follow_count.lua"));
+        FOLLOW_COUNT_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> FOLLOWS_LOAD_SCRIPT;
+    static {
+        FOLLOWS_LOAD_SCRIPT = new DefaultRedisScript<>();
+        FOLLOWS_LOAD_SCRIPT.setLocation(new ClassPathResource("follows_load.lua"));
+        FOLLOWS_LOAD_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> FOLLOWS_UPDATE_SCRIPT;
+    static {
+        FOLLOWS_UPDATE_SCRIPT = new DefaultRedisScript<>();
+        FOLLOWS_UPDATE_SCRIPT.setLocation(new ClassPathResource("follows_update.lua"));
+        FOLLOWS_UPDATE_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<List> FOLLOW_COUNT_LOAD_SCRIPT;
+    static {
+        FOLLOW_COUNT_LOAD_SCRIPT = new DefaultRedisScript<>();
+        FOLLOW_COUNT_LOAD_SCRIPT.setLocation(new ClassPathResource("follow_count_load.lua"));
+        FOLLOW_COUNT_LOAD_SCRIPT.setResultType(List.class);
+    }
+    private static final DefaultRedisScript<List> FOLLOWS_INTER_SCRIPT;
+    static {
+        FOLLOWS_INTER_SCRIPT = new DefaultRedisScript<>();
+        FOLLOWS_INTER_SCRIPT.setLocation(new ClassPathResource("follows_inter.lua"));
+        FOLLOWS_INTER_SCRIPT.setResultType(List.class);
+    }
+
+    //加载关注集合时版本冲突的最大重试次数
+    private static final int LOAD_RETRIES = 3;
+
+    //关注集合的占位成员，区分"已加载但没有关注"和"未加载"
+    private static final String PLACEHOLDER = "0";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private UserProfileCache userProfileCache;
+
+    @Override
+    public Result follow(Long followUserId, Boolean isFollow) {
+        Long userId = UserHolder.getUser().getId();
+        if (userId.equals(followUserId)) {
+            return Result.fail("不能关注自己");
+        }
+        String key = loadFollows(userId);
+        if (BooleanUtil.isTrue(isFollow)) {
+            if (BooleanUtil.isTrue(stringRedisTemplate.opsForSet().isMember(key, followUserId.toString()))) {
+                return Result.ok();
+            }
+            Follow follow = new Follow();
+            follow.setUserId(userId);
+            follow.setFollowUserId(followUserId);
+            try {
+                save(follow);
+            } catch (DuplicateKeyException e) {
+                // 并发重复关注，数据库已存在
+                updateFollows(userId, followUserId, 1);
+                return Result.ok();
+            }
+            updateFollows(userId, followUserId, 1);
+            changeFollowCounts(userId, followUserId, 1);
+        } else {
+            boolean removed = remove(new QueryWrapper<Follow>()
+                    .eq("user_id", userId).eq("follow_user_id", followUserId));
+            updateFollows(userId, followUserId, -1);
+            if (removed) {
+                changeFollowCounts(userId, followUserId, -1);
+            }
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result isFollow(Long followUserId) {
+        Long userId = UserHolder.getUser().getId();
+        String key = FOLLOWS_KEY + userId;
+        // 一次pipeline同时判断集合是否已加载和是否关注
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.exists(key);
+            conn.sIsMember(key, followUserId.toString());
+            return null;
+        });
+        if (BooleanUtil.isTrue((Boolean) results.get(0))) {
+            return Result.ok(BooleanUtil.isTrue((Boolean) results.get(1)));
+        }
+        loadFollows(userId);
+        return Result.ok(stringRedisTemplate.opsForSet().isMember(key, followUserId.toString()));
+    }
+
+    @Override
+    public Result followCommons(Long id) {
+        Long userId = UserHolder.getUser().getId();
+        // 共同关注：两个关注集合求交集
+        List<Long> ids = intersectFollows(Arrays.asList(userId, id), null);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        Map<Long, UserDTO> users = userProfileCache.getUsers(ids);
+        return Result.ok(ids.stream().map(users::get).filter(Objects::nonNull).collect(Collectors.toList()));
+    }
+
+    @Override
+    public Result queryFollowCounts(Long userId) {
+        return Result.ok(loadFollowCounts(userId));
+    }
+
+    /**
+     * 粉丝数，读redis中维护的计数，未加载时才统计数据库
+     */
+    @Override
+    public long queryFansCount(Long userId) {
+        return loadFollowCounts(userId).get("fans");
+    }
+
+    /**
+     * 用户关注的人中，同时属于集合setKey的用户
+     */
+    @Override
+    public List<Long> queryFollowsIn(Long userId, String setKey) {
+        return intersectFollows(Collections.singletonList(userId), setKey);
+    }
+
+    /**
+     * 用户关注集合与集合setKey（可为null）求交集
+     * 关注集合可能在加载后、求交集前过期，由脚本判断存在后再求交集，过期时重新加载重试
+     */
+    private List<Long> intersectFollows(List<Long> userIds, String setKey) {
+        for (int i = 0; i < LOAD_RETRIES; i++) {
+            List<String> keys = userIds.stream().map(this::loadFollows).collect(Collectors.toList());
+            if (setKey != null) {
+                keys.add(setKey);
+            }
+            List<String> members = stringRedisTemplate.execute(FOLLOWS_INTER_SCRIPT, keys,
+                    String.valueOf(userIds.size()));
+            if (members != null) {
+                return toUserIds(new HashSet<>(members));
+            }
+        }
+        log.warn("关注集合求交集时集合持续过期，userIds：{}", userIds);
+        return Collections.emptyList();
+    }
+
+    /**
+     * 查询关注数、粉丝数，未加载时先读版本计数再从数据库统计，由脚本在版本未变化时写入并设置有效期
+     * 统计期间有关注/取关时重新统计，重试仍失败时直接返回数据库的统计值
+     */
+    private Map<String, Long> loadFollowCounts(Long userId) {
+        String key = FOLLOW_COUNT_KEY + userId;
+        String versionKey = CacheClient.versionKey(key);
+        List<Object> cached = stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList("followee", "fans"));
+        if (cached.get(0) != null && cached.get(1) != null) {
+            return toFollowCounts(cached.get(0), cached.get(1));
+        }
+        String followee = null;
+        String fans = null;
+        for (int i = 0; i < LOAD_RETRIES; i++) {
+            String version = stringRedisTemplate.opsForValue().get(versionKey);
+            followee = String.valueOf(query().eq("user_id", userId).count());
+            fans = String.valueOf(query().eq("follow_user_id", userId).count());
+            List<?> counts = stringRedisTemplate.execute(FOLLOW_COUNT_LOAD_SCRIPT, Arrays.asList(key, versionKey),
+                    version == null ? "0" : version,
+                    String.valueOf(TimeUnit.MINUTES.toSeconds(FOLLOW_COUNT_TTL)), followee, fans);
+            if (counts != null && counts.size() == 2) {
+                return toFollowCounts(counts.get(0), counts.get(1));
+            }
+        }
+        log.warn("关注计数加载时版本持续变化，放弃写入，userId：{}", userId);
+        return toFollowCounts(followee, fans);
+    }
+
+    private static Map<String, Long> toFollowCounts(Object followee, Object fans) {
+        Map<String, Long> result = new HashMap<>(2);
+        result.put("followee", followee == null ? 0L : Long.valueOf(followee.toString()));
+        result.put("fans", fans == null ? 0L : Long.valueOf(fans.toString()));
+        return result;
+    }
+
+    /**
+     * 确保用户的关注集合已加载到redis
+     * 先读版本计数再查询数据库，由脚本在版本未变化时写入集合并设置有效期；期间有关注/取关时重新加载
+     * @return 关注集合的key
+     */
+    private String loadFollows(Long userId) {
+        String key = FOLLOWS_KEY + userId;
+        String versionKey = CacheClient.versionKey(key);
+        for (int i = 0; i < LOAD_RETRIES; i++) {
+            if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(key))) {
+                return key;
+            }
+            String version = stringRedisTemplate.opsForValue().get(versionKey);
+            List<String> args = new ArrayList<>();
+            args.add(version == null ? "0" : version);
+            args.add(String.valueOf(TimeUnit.MINUTES.toSeconds(FOLLOWS_TTL)));
+            args.add(PLACEHOLDER);
+            query().select("follow_user_id").eq("user_id", userId).list()
+                    .forEach(f -> args.add(f.getFollowUserId().toString()));
+            Long loaded = stringRedisTemplate.execute(FOLLOWS_LOAD_SCRIPT,
+                    Arrays.asList(key, versionKey), args.toArray());
+            if (loaded != null && loaded == 1L) {
+                return key;
+            }
+        }
+        log.warn("关注集合加载时版本持续变化，放弃加载，userId：{}", userId);
+        return key;
+    }
+
+    /**
+     * 关注/取关写入数据库后同步关注集合，并把版本计数加1使正在进行的加载失效
+     */
+    private void updateFollows(Long userId, Long followUserId, int delta) {
+        String key = FOLLOWS_KEY + userId;
+        stringRedisTemplate.execute(FOLLOWS_UPDATE_SCRIPT, Arrays.asList(key, CacheClient.versionKey(key)),
+                String.valueOf(delta), followUserId.toString());
+    }
+
+    /**
+     * 调整关注者的关注数和被关注者的粉丝数，两个用户的计数分别执行脚本，一次pipeline发出
+     */
+    private void changeFollowCounts(Long userId, Long followUserId, int delta) {
+        byte[] script = FOLLOW_COUNT_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        byte[] value = String.valueOf(delta).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            evalFollowCount(connection, script, userId, "followee", value);
+            evalFollowCount(connection, script, followUserId, "fans", value);
+            return null;
+        });
+    }
+
+    private static void evalFollowCount(RedisConnection connection, byte[] script, Long userId, String field, byte[] delta) {
+        String key = FOLLOW_COUNT_KEY + userId;
+        connection.eval(script, ReturnType.INTEGER, 2,
+                key.getBytes(StandardCharsets.UTF_8),
+                CacheClient.versionKey(key).getBytes(StandardCharsets.UTF_8),
+                field.getBytes(StandardCharsets.UTF_8), delta);
+    }
+
+    private static List<Long> toUserIds(Set<String> members) {
+        if (CollUtil.isEmpty(members)) {
+            return Collections.emptyList();
+        }
+        return members.stream()
+                .filter(m -> !PLACEHOLDER.equals(m))
+                .map(Long::valueOf)
+                .collect(Collectors.toList());
+    }
 }
@@ -1,26 +1,53 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.io.IORuntimeException;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopImportReport;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.CounterDeltaFlusher;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopImportReader;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
 
 import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -32,9 +59,16 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
+    //排行榜支持的指标
+    private static final Set<String> RANK_METRICS = new HashSet<>(Arrays.asList("sold", "score", "comments"));
+
+    //类型列表的占位成员，区分"已加载但没有商铺"和"未加载"
+    private static final String PLACEHOLDER = "0";
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     //线程池
@@ -43,6 +77,28 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    @Resource
+    private CounterDeltaFlusher counterDeltaFlusher;
+
+    //附近商铺的搜索半径，米
+    private static final double SHOP_GEO_RADIUS = 5000;
+    //加载GEO、批量导入时每批的条数
+    private static final int BATCH_SIZE = 500;
+    //导入报告最多记录的错误行数
+    private static final int MAX_IMPORT_ERRORS = 1000;
+
     @Override
     public Result queryById(Long id) {
         //解决缓存穿透方式
@@ -55,7 +111,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //            Result.fail("店铺不存在");
 //        }
 //        Shop shop = queryWithLogicalExpire(id);
-        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 10L, TimeUnit.SECONDS);
+        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         return Result.ok(shop);
     }
 
@@ -190,16 +246,509 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 清除新id上可能缓存的空值
+        cacheInvalidator.invalidateVersioned(CACHE_SHOP_KEY + shop.getId());
+        shopSearchIndex.publish(shop.getId(), shop.getName(), shop.getArea());
+        // 类型列表换新版本
+        if (shop.getTypeId() != null) {
+            stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY + shop.getTypeId());
+        }
+        // 加入所属类型的GEO集合
+        if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                    new Point(shop.getX(), shop.getY()), shop.getId().toString());
+            shopGeoIndex.publish(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+        }
+        // 进入排行榜
+        writeRanks(Collections.singletonList(shop));
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result updateShop(Shop shop) {
         if (shop.getId() == null){
             return Result.fail("店铺不存在");
         }
+        Shop old = getById(shop.getId());
+        if (old == null) {
+            return Result.fail("店铺不存在");
+        }
         //1. 更新数据库
         updateById(shop);
-        //2. 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        Shop updated = getById(shop.getId());
+        //2. 事务提交后版本计数加1并删除缓存
+        cacheInvalidator.invalidateVersioned(CACHE_SHOP_KEY + shop.getId());
+        //3. 其余redis和本地索引的同步也在事务提交后执行，回滚时不留下未提交的数据
+        cacheInvalidator.runAfterCommit(() -> syncIndexes(old, updated));
         return Result.ok();
     }
+
+    /**
+     * 商铺修改提交后同步搜索索引、GEO集合、类型列表版本和排行榜
+     */
+    private void syncIndexes(Shop old, Shop updated) {
+        //名称或商圈变化时同步搜索索引
+        if (!Objects.equals(old.getName(), updated.getName()) || !Objects.equals(old.getArea(), updated.getArea())) {
+            shopSearchIndex.publish(updated.getId(), updated.getName(), updated.getArea());
+        }
+        //类型或坐标变化时同步GEO集合
+        Long typeId = updated.getTypeId();
+        String member = updated.getId().toString();
+        if (!typeId.equals(old.getTypeId())) {
+            // 商铺换了类型，移出旧类型的GEO集合和排行榜，旧类型的列表也换新版本
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), member);
+            RANK_METRICS.forEach(metric ->
+                    stringRedisTemplate.opsForZSet().remove(SHOP_RANK_KEY + metric + ":" + old.getTypeId(), member));
+            stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY + old.getTypeId());
+        }
+        stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY + typeId);
+        if (updated.getX() != null && updated.getY() != null) {
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + typeId, new Point(updated.getX(), updated.getY()), member);
+            shopGeoIndex.publish(updated.getId(), typeId, updated.getX(), updated.getY());
+        }
+        //同步排行榜，叠加尚未写回数据库的增量
+        List<Shop> shops = Collections.singletonList(updated);
+        applyPendingDeltas(shops);
+        writeRanks(shops);
+    }
+
+    /**
+     * 流式批量导入商铺：逐行校验，每批多行insert，然后用pipeline写入商铺缓存、GEO集合和排行榜
+     */
+    @Override
+    public Result importShops(InputStream in, String contentType) {
+        ShopImportReport report = new ShopImportReport();
+        long begin = System.currentTimeMillis();
+        List<Shop> chunk = new ArrayList<>(BATCH_SIZE);
+        List<Integer> rows = new ArrayList<>(BATCH_SIZE);
+        try (ShopImportReader reader = ShopImportReader.open(in, contentType, objectMapper)) {
+            ShopImportReader.Row row;
+            while ((row = reader.next()) != null) {
+                report.setTotal(report.getTotal() + 1);
+                String error = row.getError() != null ? row.getError() : ShopImportReader.validate(row.getShop());
+                if (error != null) {
+                    addImportError(report, row.getIndex(), error);
+                    continue;
+                }
+                chunk.add(row.getShop());
+                rows.add(row.getIndex());
+                if (chunk.size() >= BATCH_SIZE) {
+                    importChunk(chunk, rows, report);
+                    chunk.clear();
+                    rows.clear();
+                }
+            }
+        } catch (IOException | IORuntimeException e) {
+            log.error("商铺导入数据读取失败", e);
+            addImportError(report, report.getTotal() + 1, "数据格式错误，导入中止：" + e.getMessage());
+        }
+        if (!chunk.isEmpty()) {
+            importChunk(chunk, rows, report);
+        }
+        long elapsed = Math.max(System.currentTimeMillis() - begin, 1);
+        report.setElapsedMillis(elapsed);
+        report.setRowsPerSecond(report.getImported() * 1000L / elapsed);
+        return Result.ok(report);
+    }
+
+    private void addImportError(ShopImportReport report, int row, String message) {
+        report.setFailed(report.getFailed() + 1);
+        if (report.getErrors().size() < MAX_IMPORT_ERRORS) {
+            report.getErrors().add(new ShopImportReport.RowError(row, message));
+        }
+    }
+
+    private void importChunk(List<Shop> chunk, List<Integer> rows, ShopImportReport report) {
+        List<Shop> saved = new ArrayList<>(chunk.size());
+        try {
+            // 一批只flush一次，rewriteBatchedStatements下是一条多行insert，要么全部成功要么全部失败
+            saveBatch(chunk, chunk.size());
+            saved.addAll(chunk);
+        } catch (Exception e) {
+            // 整批失败时逐行插入，定位出错的行
+            log.warn("商铺批量插入失败，改为逐行插入", e);
+            for (int i = 0; i < chunk.size(); i++) {
+                Shop shop = chunk.get(i).setId(null);
+                try {
+                    save(shop);
+                    saved.add(shop);
+                } catch (Exception ex) {
+                    addImportError(report, rows.get(i), "写入数据库失败");
+                }
+            }
+        }
+        report.setImported(report.getImported() + saved.size());
+        if (saved.isEmpty()) {
+            return;
+        }
+        // 数据库已写入，同步失败只记录在报告中，不中断导入
+        // 缓存在读取时重建，排行榜由定时任务校准，GEO集合和搜索索引在下次启动加载时补齐
+        try {
+            // 缓存、GEO、排行榜各一次pipeline
+            // 新插入的商铺还没有版本计数，按版本0写入，插入后已被修改的放弃写入
+            cacheClient.setWithLogicalExpireBatch(CACHE_SHOP_KEY,
+                    saved.stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                    Collections.emptyMap(), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            Set<Long> typeIds = saved.stream().map(Shop::getTypeId).collect(Collectors.toSet());
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Shop shop : saved) {
+                    conn.geoAdd(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), shop.getId().toString());
+                }
+                for (Long typeId : typeIds) {
+                    conn.incr(CACHE_SHOP_TYPE_VERSION_KEY + typeId);
+                }
+                return null;
+            });
+            writeRanks(saved);
+            for (Shop shop : saved) {
+                shopGeoIndex.publish(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+                shopSearchIndex.publish(shop.getId(), shop.getName(), shop.getArea());
+            }
+        } catch (Exception e) {
+            log.error("商铺导入后同步缓存和索引失败，批次首行：{}", rows.get(0), e);
+            report.getSyncErrors().add(new ShopImportReport.RowError(rows.get(0),
+                    "本批" + saved.size() + "行已导入，缓存和索引同步失败"));
+        }
+    }
+
+    /**
+     * 分页查询某类型的商铺，id列表按类型缓存在zset中，key带版本号
+     * 类型下商铺新增或修改时版本号加1，旧版本的列表不再被读取，等待过期
+     */
+    @Override
+    public Result queryShopByType(Long typeId, Integer current) {
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        // 占位成员排在第0位
+        int start = from + 1;
+        int end = start + SystemConstants.DEFAULT_PAGE_SIZE - 1;
+        // 先读当前版本，再用一个pipeline取该版本的列表；两条命令都只访问一个key，集群下同样适用
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY + typeId);
+        if (version == null) {
+            version = "0";
+        }
+        String key = CACHE_SHOP_TYPE_KEY + typeId + ":" + version;
+        List<Object> result = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.exists(key);
+            conn.zRange(key, start, end);
+            return null;
+        });
+        List<Long> ids;
+        if (Boolean.TRUE.equals(result.get(0))) {
+            ids = ((Collection<?>) result.get(1)).stream()
+                    .map(id -> Long.valueOf(id.toString())).collect(Collectors.toList());
+        } else {
+            List<Long> all = loadTypeList(typeId, version);
+            ids = all.subList(Math.min(from, all.size()), Math.min(from + SystemConstants.DEFAULT_PAGE_SIZE, all.size()));
+        }
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 从商铺缓存批量读取，缺失的在请求线程中一次查询数据库并回写
+        Map<Long, Shop> shopMap = cacheClient.queryBatchWithLogicalExpire(
+                CACHE_SHOP_KEY, ids, Shop.class, this::getById, this::loadShops, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Shop shop = shopMap.get(id);
+            if (shop != null) {
+                shops.add(shop);
+            }
+        }
+        return Result.ok(shops);
+    }
+
+    /**
+     * 从数据库加载类型的id列表，写入对应版本的zset
+     */
+    private List<Long> loadTypeList(Long typeId, String version) {
+        List<Long> ids = query().select("id").eq("type_id", typeId).orderByAsc("id").list()
+                .stream().map(Shop::getId).collect(Collectors.toList());
+        String key = CACHE_SHOP_TYPE_KEY + typeId + ":" + version;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.zAdd(key, -1, PLACEHOLDER);
+            for (Long id : ids) {
+                conn.zAdd(key, id, id.toString());
+            }
+            conn.expire(key, TimeUnit.MINUTES.toSeconds(CACHE_SHOP_TTL));
+            return null;
+        });
+        return ids;
+    }
+
+    /**
+     * 按距离由近到远分页查询某类型的商铺，优先走本地空间索引，索引未就绪时查redis GEO，不查数据库
+     */
+    @Override
+    public Result queryShopByLocation(Long typeId, Integer current, Double x, Double y) {
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        if (shopGeoIndex.isReady()) {
+            List<ShopGeoIndex.Nearby> nearby = shopGeoIndex.nearest(typeId, x, y, SHOP_GEO_RADIUS, end);
+            if (nearby.size() <= from) {
+                return Result.ok(Collections.emptyList());
+            }
+            Map<Long, Double> distances = new LinkedHashMap<>();
+            nearby.subList(from, nearby.size()).forEach(n -> distances.put(n.getId(), n.getDistance()));
+            return Result.ok(fillDistance(distances));
+        }
+        // GEORADIUS只能指定条数，取前end条后跳过前from条
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                SHOP_GEO_KEY + typeId,
+                new Circle(new Point(x, y), new Distance(SHOP_GEO_RADIUS, RedisGeoCommands.DistanceUnit.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        if (results == null || results.getContent().size() <= from) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> page =
+                results.getContent().subList(from, results.getContent().size());
+        Map<Long, Double> distances = new LinkedHashMap<>();
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : page) {
+            distances.put(Long.valueOf(result.getContent().getName()), result.getDistance().getValue());
+        }
+        return Result.ok(fillDistance(distances));
+    }
+
+    /**
+     * 按名称、商圈关键字搜索商铺，走本地倒排索引，详情从缓存批量读取
+     * 索引未就绪时回退到数据库模糊查询
+     */
+    @Override
+    public Result searchShop(String name, Integer current) {
+        if (!shopSearchIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like("name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        List<Long> ids = shopSearchIndex.search(name,
+                (current - 1) * SystemConstants.MAX_PAGE_SIZE, SystemConstants.MAX_PAGE_SIZE);
+        // 刚改名或新增的商铺缓存已删除，在请求线程中批量查询，不能从结果中漏掉
+        Map<Long, Shop> shopMap = cacheClient.queryBatchWithLogicalExpire(
+                CACHE_SHOP_KEY, ids, Shop.class, this::getById, this::loadShops, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Shop shop = shopMap.get(id);
+            if (shop != null) {
+                shops.add(shop);
+            }
+        }
+        return Result.ok(shops);
+    }
+
+    /**
+     * 一次MGET取出商铺详情并填充距离，保持传入的顺序
+     */
+    private List<Shop> fillDistance(Map<Long, Double> distances) {
+        // 缓存缺失（刚修改、刚新增或冷启动）的商铺在请求线程中批量查询，不能从附近列表中漏掉
+        Map<Long, Shop> shopMap = cacheClient.queryBatchWithLogicalExpire(
+                CACHE_SHOP_KEY, distances.keySet(), Shop.class, this::getById, this::loadShops,
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(distances.size());
+        distances.forEach((id, distance) -> {
+            Shop shop = shopMap.get(id);
+            if (shop != null) {
+                shop.setDistance(distance);
+                shops.add(shop);
+            }
+        });
+        return shops;
+    }
+
+    /**
+     * 批量查询缓存缺失的商铺，用作queryBatchWithLogicalExpire的missLoader
+     */
+    private Map<Long, Shop> loadShops(List<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+    }
+
+    /**
+     * 排行榜分页，每个类型每个指标一个zset：shop:rank:{metric}:{typeId}
+     */
+    @Override
+    public Result queryShopRank(Long typeId, String metric, Integer current) {
+        if (!RANK_METRICS.contains(metric)) {
+            return Result.fail("不支持的排序方式！");
+        }
+        long start = (long) (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRange(
+                SHOP_RANK_KEY + metric + ":" + typeId, start, start + SystemConstants.DEFAULT_PAGE_SIZE - 1);
+        if (members == null || members.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        // 缓存缺失的商铺在请求线程中批量查询，保证每页条数和名次连续
+        Map<Long, Shop> shopMap = cacheClient.queryBatchWithLogicalExpire(
+                CACHE_SHOP_KEY, ids, Shop.class, this::getById, this::loadShops, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Shop shop = shopMap.get(id);
+            if (shop != null) {
+                shops.add(shop);
+            }
+        }
+        return Result.ok(shops);
+    }
+
+    /**
+     * 成交一单：销量增量先累加在redis，由定时任务写回数据库，排行榜直接加1
+     * 应在下单事务提交后调用
+     */
+    @Override
+    public void incrSold(Long shopId) {
+        stringRedisTemplate.opsForHash().increment(SHOP_SOLD_DELTA_KEY, shopId.toString(), 1);
+        incrRank(shopId, "sold");
+    }
+
+    /**
+     * 新增一条评价：评价数增量先累加在redis，由定时任务写回数据库，排行榜直接加1
+     */
+    @Override
+    public void incrComments(Long shopId) {
+        stringRedisTemplate.opsForHash().increment(SHOP_COMMENTS_DELTA_KEY, shopId.toString(), 1);
+        incrRank(shopId, "comments");
+    }
+
+    /**
+     * 定时把销量、评价数增量批量合并到tb_shop
+     */
+    @Scheduled(fixedDelay = 5000L)
+    public void flushCounterDeltas() {
+        counterDeltaFlusher.flush(SHOP_SOLD_DELTA_KEY, getBaseMapper()::incrSold);
+        counterDeltaFlusher.flush(SHOP_COMMENTS_DELTA_KEY, getBaseMapper()::incrComments);
+    }
+
+    private void incrRank(Long shopId, String metric) {
+        Shop shop = cacheClient.queryBatchWithLogicalExpire(CACHE_SHOP_KEY, Collections.singletonList(shopId),
+                Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES).get(shopId);
+        if (shop == null) {
+            shop = getById(shopId);
+        }
+        if (shop == null || shop.getTypeId() == null) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().incrementScore(
+                SHOP_RANK_KEY + metric + ":" + shop.getTypeId(), shopId.toString(), 1);
+    }
+
+    /**
+     * 启动时按id分批扫描tb_shop，用pipeline写入各类型的GEO集合、排行榜并预热商铺缓存，同时构建本地空间索引和搜索索引
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadShopIndexes() {
+        int loaded = scanShops(shops -> {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Shop shop : shops) {
+                    if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                        conn.geoAdd(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), shop.getId().toString());
+                    }
+                }
+                return null;
+            });
+            // 叠加尚未写回数据库的增量，实例启动时不能把排行榜上已经加过的分数抹掉
+            applyPendingDeltas(shops);
+            writeRanks(shops);
+            for (Shop shop : shops) {
+                if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    shopGeoIndex.put(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+                }
+                shopSearchIndex.put(shop.getId(), shop.getName(), shop.getArea());
+            }
+            // 先读版本再重新查询这一批写入缓存，扫描期间被修改的商铺因版本不一致放弃写入
+            List<Long> ids = shops.stream().map(Shop::getId).collect(Collectors.toList());
+            Map<Long, Long> versions = cacheClient.readVersions(CACHE_SHOP_KEY, ids);
+            cacheClient.setWithLogicalExpireBatch(CACHE_SHOP_KEY,
+                    listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                    versions, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        });
+        shopGeoIndex.markReady();
+        shopSearchIndex.markReady();
+        log.info("商铺索引加载完成，共{}家", loaded);
+    }
+
+    /**
+     * 每小时用数据库的值校准排行榜，修正增量更新可能的偏差
+     * 多个实例只由抢到锁的一个执行；锁不主动释放，等待过期，避免时钟稍慢的实例在本轮重复执行
+     */
+    @Scheduled(cron = "0 15 * * * ?")
+    public void reconcileRanks() {
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(LOCK_SHOP_RANK_KEY, "1", LOCK_SHOP_RANK_TTL, TimeUnit.SECONDS);
+        if (!BooleanUtil.isTrue(locked)) {
+            return;
+        }
+        // 叠加尚未写回数据库的增量，避免校准时把排行榜上已经加过的分数抹掉
+        int reconciled = scanShops(shops -> {
+            applyPendingDeltas(shops);
+            writeRanks(shops);
+        });
+        log.info("商铺排行榜校准完成，共{}家", reconciled);
+    }
+
+    /**
+     * 销量、评价数叠加redis中尚未写回数据库的增量
+     */
+    private void applyPendingDeltas(List<Shop> shops) {
+        List<Object> ids = shops.stream().map(shop -> (Object) shop.getId().toString()).collect(Collectors.toList());
+        List<Object> soldDeltas = stringRedisTemplate.opsForHash().multiGet(SHOP_SOLD_DELTA_KEY, ids);
+        List<Object> commentsDeltas = stringRedisTemplate.opsForHash().multiGet(SHOP_COMMENTS_DELTA_KEY, ids);
+        for (int i = 0; i < shops.size(); i++) {
+            Shop shop = shops.get(i);
+            shop.setSold(applyDelta(shop.getSold(), soldDeltas.get(i)));
+            shop.setComments(applyDelta(shop.getComments(), commentsDeltas.get(i)));
+        }
+    }
+
+    private static Integer applyDelta(Integer value, Object delta) {
+        if (delta == null) {
+            return value;
+        }
+        int base = value == null ? 0 : value;
+        return Math.max(base + Integer.parseInt(delta.toString()), 0);
+    }
+
+    private void writeRanks(List<Shop> shops) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Shop shop : shops) {
+                if (shop.getTypeId() == null) {
+                    continue;
+                }
+                String member = shop.getId().toString();
+                conn.zAdd(SHOP_RANK_KEY + "sold:" + shop.getTypeId(), nullToZero(shop.getSold()), member);
+                conn.zAdd(SHOP_RANK_KEY + "score:" + shop.getTypeId(), nullToZero(shop.getScore()), member);
+                conn.zAdd(SHOP_RANK_KEY + "comments:" + shop.getTypeId(), nullToZero(shop.getComments()), member);
+            }
+            return null;
+        });
+    }
+
+    private static double nullToZero(Integer value) {
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * 按id分批扫描tb_shop，返回扫描的总数
+     */
+    private int scanShops(Consumer<List<Shop>> consumer) {
+        long lastId = 0;
+        int count = 0;
+        while (true) {
+            List<Shop> shops = query().gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + BATCH_SIZE).list();
+            if (shops.isEmpty()) {
+                return count;
+            }
+            consumer.accept(shops);
+            count += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+    }
 }
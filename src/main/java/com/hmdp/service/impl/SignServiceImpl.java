@@ -0,0 +1,249 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import com.hmdp.service.ISignService;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ * 签到：每个用户每月一个bitmap，sign:{userId}:{yyyyMM}，第n天对应offset n-1
+ * 上月的bitmap由定时任务归档到tb_sign，每个用户每月一行
+ * </p>
+ */
+@Slf4j
+@Service
+public class SignServiceImpl extends ServiceImpl<SignMapper, Sign> implements ISignService {
+
+    private static final DefaultRedisScript<Long> BACKFILL_SCRIPT;
+    static {
+        BACKFILL_SCRIPT = new DefaultRedisScript<>();
+        BACKFILL_SCRIPT.setLocation(new ClassPathResource("sign_backfill.lua"));
+        BACKFILL_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
+    //归档时每批的条数
+    private static final int BATCH_SIZE = 500;
+
+    //连续签到最多向前追溯的月数
+    private static final int MAX_STREAK_MONTHS = 12;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Override
+    public Result sign() {
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        Boolean signed = stringRedisTemplate.opsForValue()
+                .setBit(signKey(userId, YearMonth.from(today)), today.getDayOfMonth() - 1, true);
+        if (BooleanUtil.isTrue(signed)) {
+            return Result.fail("今天已经签到过了！");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 补签本月今天之前的某一天，每月有次数上限
+     */
+    @Override
+    public Result backfill(LocalDate date) {
+        LocalDate today = LocalDate.now();
+        if (!date.isBefore(today) || !YearMonth.from(date).equals(YearMonth.from(today))) {
+            return Result.fail("只能补签本月之前的日期！");
+        }
+        Long userId = UserHolder.getUser().getId();
+        YearMonth month = YearMonth.from(date);
+        String backupKey = USER_SIGN_BACKUP_KEY + userId + ":" + month.format(MONTH_FORMATTER);
+        // 次数校验和写入在一个脚本中完成，并发补签不会超过上限
+        Long result = stringRedisTemplate.execute(BACKFILL_SCRIPT, Arrays.asList(signKey(userId, month), backupKey),
+                String.valueOf(date.getDayOfMonth() - 1), USER_SIGN_BACKFILL_MAX.toString());
+        if (result == null || result == 2L) {
+            return Result.fail("本月补签次数已用完！");
+        }
+        if (result == 1L) {
+            return Result.fail("当天已经签到过了！");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 截至今天的连续签到天数，今天还没签到时从昨天开始算
+     */
+    @Override
+    public Result signCount() {
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        YearMonth month = YearMonth.from(today);
+        int day = today.getDayOfMonth();
+        long bits = monthBits(userId, month, day);
+        if ((bits & 1) == 0) {
+            // 今天还没签到
+            bits >>>= 1;
+            day--;
+        }
+        int count = 0;
+        for (int i = 0; i < MAX_STREAK_MONTHS; i++) {
+            int streak = Long.numberOfTrailingZeros(~bits);
+            count += Math.min(streak, day);
+            if (streak < day) {
+                break;
+            }
+            // 本月从1号起全部签到，继续往上个月追溯
+            month = month.minusMonths(1);
+            day = month.lengthOfMonth();
+            bits = monthBits(userId, month, day);
+        }
+        return Result.ok(count);
+    }
+
+    /**
+     * 某月签到统计：签到天数和每天是否签到
+     */
+    @Override
+    public Result signOfMonth(YearMonth month) {
+        Long userId = UserHolder.getUser().getId();
+        int days = month.lengthOfMonth();
+        long bits = monthBits(userId, month, days);
+        List<Boolean> signs = new ArrayList<>(days);
+        for (int i = days - 1; i >= 0; i--) {
+            signs.add(((bits >>> i) & 1) == 1);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", Long.bitCount(bits));
+        result.put("days", signs);
+        return Result.ok(result);
+    }
+
+    /**
+     * 读取某月前days天的签到位，最低位是第days天
+     * redis里没有时读取归档
+     */
+    private long monthBits(Long userId, YearMonth month, int days) {
+        if (days <= 0) {
+            return 0;
+        }
+        String key = signKey(userId, month);
+        List<Long> result = stringRedisTemplate.opsForValue().bitField(key, BitFieldSubCommands.create()
+                .get(BitFieldSubCommands.BitFieldType.unsigned(days)).valueAt(0));
+        if (result != null && !result.isEmpty() && result.get(0) != null && result.get(0) != 0) {
+            return result.get(0);
+        }
+        if (month.equals(YearMonth.now())) {
+            return 0;
+        }
+        Sign sign = query().eq("user_id", userId)
+                .eq("year", month.getYear()).eq("month", month.getMonthValue()).one();
+        if (sign == null || sign.getSignBits() == null) {
+            return 0;
+        }
+        // 归档是31位，截取前days天
+        return (sign.getSignBits() & 0x7FFFFFFFL) >>> (31 - days);
+    }
+
+    /**
+     * 每月1号归档上个月的签到bitmap，归档后bitmap保留一段时间再过期
+     */
+    @Scheduled(cron = "0 30 3 1 * ?")
+    public void archiveLastMonth() {
+        YearMonth month = YearMonth.now().minusMonths(1);
+        String suffix = ":" + month.format(MONTH_FORMATTER);
+        List<String> keys = new ArrayList<>(BATCH_SIZE);
+        int archived = 0;
+        ScanOptions options = ScanOptions.scanOptions().match(USER_SIGN_KEY + "*" + suffix).count(BATCH_SIZE).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(connection -> connection.scan(options))) {
+            while (cursor != null && cursor.hasNext()) {
+                String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                // 跳过补签记录 sign:backup:{userId}:{yyyyMM}
+                if (key.split(":").length != 3) {
+                    continue;
+                }
+                keys.add(key);
+                if (keys.size() >= BATCH_SIZE) {
+                    archived += archiveBatch(keys, month);
+                    keys.clear();
+                }
+            }
+        } catch (Exception e) {
+            log.error("签到归档失败，月份：{}", month, e);
+            return;
+        }
+        if (!keys.isEmpty()) {
+            archived += archiveBatch(keys, month);
+        }
+        log.info("签到归档完成，月份：{}，用户数：{}", month, archived);
+    }
+
+    private int archiveBatch(List<String> keys, YearMonth month) {
+        BitFieldSubCommands u31 = BitFieldSubCommands.create()
+                .get(BitFieldSubCommands.BitFieldType.unsigned(31)).valueAt(0);
+        String monthText = month.format(MONTH_FORMATTER);
+        // 一次pipeline读出整批bitmap和补签记录
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                conn.bitfield(key, u31);
+                conn.exists(USER_SIGN_BACKUP_KEY + key.split(":")[1] + ":" + monthText);
+            }
+            return null;
+        });
+        List<Sign> signs = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            List<?> bits = (List<?>) results.get(2 * i);
+            if (bits == null || bits.isEmpty() || bits.get(0) == null) {
+                continue;
+            }
+            signs.add(new Sign()
+                    .setUserId(Long.valueOf(keys.get(i).split(":")[1]))
+                    .setYear(month.getYear())
+                    .setMonth(month.getMonthValue())
+                    .setDate(month.atDay(1))
+                    .setIsBackup(BooleanUtil.isTrue((Boolean) results.get(2 * i + 1)))
+                    .setSignBits(((Number) bits.get(0)).intValue()));
+        }
+        if (!signs.isEmpty()) {
+            getBaseMapper().upsertBatch(signs);
+        }
+        // 写入成功后再设置过期，失败时bitmap仍在，下次可以重跑
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                conn.expire(key, TimeUnit.DAYS.toSeconds(USER_SIGN_ARCHIVE_TTL));
+                conn.expire(USER_SIGN_BACKUP_KEY + key.split(":")[1] + ":" + monthText,
+                        TimeUnit.DAYS.toSeconds(USER_SIGN_ARCHIVE_TTL));
+            }
+            return null;
+        });
+        return signs.size();
+    }
+
+    private static String signKey(Long userId, YearMonth month) {
+        return USER_SIGN_KEY + userId + ":" + month.format(MONTH_FORMATTER);
+    }
+}
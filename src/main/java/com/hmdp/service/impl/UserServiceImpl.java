@@ -1,10 +1,11 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.collection.CollUtil;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
-import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -12,17 +13,33 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.LoginUserCache;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedTokenManager;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserProfileCache;
+import com.hmdp.utils.VerifyCodeClient;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -40,19 +57,52 @@ import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 @Service
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
 
+    private static final DefaultRedisScript<Long> LOGIN_SESSION_SCRIPT;
+    static {
+        LOGIN_SESSION_SCRIPT = new DefaultRedisScript<>();
+        LOGIN_SESSION_SCRIPT.setLocation(new ClassPathResource("login_session.lua"));
+        LOGIN_SESSION_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> SESSION_UPDATE_SCRIPT;
+    static {
+        SESSION_UPDATE_SCRIPT = new DefaultRedisScript<>();
+        SESSION_UPDATE_SCRIPT.setLocation(new ClassPathResource("session_update.lua"));
+        SESSION_UPDATE_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private LoginUserCache loginUserCache;
+
+    @Resource
+    private VerifyCodeClient verifyCodeClient;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @Resource
+    private UserProfileCache userProfileCache;
+
+    @Resource
+    private SignedTokenManager signedTokenManager;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         if (RegexUtils.isPhoneInvalid(phone)){
             return Result.fail("手机号格式错误");
         }
-        String code = RandomUtil.randomNumbers(6);
-//        session.setAttribute("code", code);
-        stringRedisTemplate.opsForValue().set(LOGIN_CODE_KEY + phone, code, LOGIN_CODE_TTL, TimeUnit.MINUTES);
+        //签发验证码，校验重发间隔和每日上限
+        VerifyCodeClient.IssueResult issued = verifyCodeClient.issue(phone);
+        if (issued.getStatus() == VerifyCodeClient.ISSUE_TOO_FREQUENT) {
+            return Result.fail("发送过于频繁，请稍后再试");
+        }
+        if (issued.getStatus() == VerifyCodeClient.ISSUE_DAILY_LIMIT) {
+            return Result.fail("今日发送次数已达上限");
+        }
         //发送验证码
-        log.debug("发送短信验证码成功，验证码{}", code);
+        log.debug("发送短信验证码成功，验证码{}", issued.getCode());
         return Result.ok();
     }
 
@@ -61,36 +111,174 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         if (RegexUtils.isPhoneInvalid(loginForm.getPhone())){
             return Result.fail("手机号格式错误");
         }
-//        if (!loginForm.getCode().equals(session.getAttribute("code"))){
-//            return Result.fail("验证码错误");
-//        }
-        // 从redis获取验证码并校验
-        String s = stringRedisTemplate.opsForValue().get(LOGIN_CODE_KEY + loginForm.getPhone());
-        if (s == null || !s.equals(loginForm.getCode())){
+        String phone = loginForm.getPhone();
+        if (StrUtil.isBlank(loginForm.getCode())){
             return Result.fail("验证码错误");
         }
-        //查询是否存在用户
-        User user = query().eq("phone", loginForm.getPhone()).one();
-        if (user == null) {
-            user = createUserWithPhone(loginForm.getPhone());
+        // 校验并删除验证码，同时读取手机号对应的用户缓存
+        VerifyCodeClient.VerifyResult verified = verifyCodeClient.verify(phone, loginForm.getCode(), LOGIN_PHONE_KEY + phone);
+        if (verified.getStatus() == VerifyCodeClient.VERIFY_EXPIRED){
+            return Result.fail("验证码已过期，请重新获取");
+        }
+        if (verified.getStatus() == VerifyCodeClient.VERIFY_LOCKED){
+            return Result.fail("验证码错误次数过多，请重新获取");
+        }
+        if (verified.getStatus() != VerifyCodeClient.VERIFY_OK){
+            return Result.fail("验证码错误");
+        }
+        UserDTO userDTO = verified.getAttachment() != null
+                ? JSONUtil.toBean(verified.getAttachment(), UserDTO.class)
+                : queryUserByPhone(phone);
+        //签名令牌模式，不写redis
+        if (signedTokenManager.isEnabled()) {
+            return Result.ok(signedTokenManager.issue(userDTO));
         }
-        // 保存用户到redis中
         //随机生成token，作为登录令牌
         String token = UUID.randomUUID().toString(true);
-        // 将user转为hashmap存储
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO,new HashMap<>(),
-                CopyOptions.create()
-                        .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
-        //存储
-        stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + token, userMap);
-//        session.setAttribute("user", BeanUtil.copyProperties(user, UserDTO.class));
-        // 设置token有效期
-        stringRedisTemplate.expire(LOGIN_USER_KEY, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        //写入会话并设置有效期，同时记入用户的会话索引
+        List<String> args = new ArrayList<>(8);
+        args.add(String.valueOf(TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL)));
+        args.add(token);
+        args.add("id");
+        args.add(userDTO.getId().toString());
+        args.add("nickName");
+        args.add(StrUtil.nullToEmpty(userDTO.getNickName()));
+        args.add("icon");
+        args.add(StrUtil.nullToEmpty(userDTO.getIcon()));
+        Long sessions = stringRedisTemplate.execute(LOGIN_SESSION_SCRIPT,
+                Arrays.asList(LOGIN_USER_KEY + token, LOGIN_TOKENS_KEY + userDTO.getId()), args.toArray());
+        if (sessions != null && sessions > LOGIN_TOKENS_PRUNE_SIZE) {
+            pruneSessions(userDTO.getId());
+        }
         return Result.ok(token);
     }
 
+    /**
+     * 会话索引中的token数超过阈值时，清理已过期的会话
+     */
+    private void pruneSessions(Long userId) {
+        String key = LOGIN_TOKENS_KEY + userId;
+        Set<String> tokens = stringRedisTemplate.opsForSet().members(key);
+        if (CollUtil.isEmpty(tokens)) {
+            return;
+        }
+        List<String> list = new ArrayList<>(tokens);
+        List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            list.forEach(t -> conn.exists(LOGIN_USER_KEY + t));
+            return null;
+        });
+        removeSessions(key, list, exists, Boolean.FALSE);
+    }
+
+    /**
+     * 从会话索引中移除结果为dead的token
+     */
+    private void removeSessions(String key, List<String> tokens, List<Object> results, Object dead) {
+        List<String> expired = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (dead.equals(results.get(i))) {
+                expired.add(tokens.get(i));
+            }
+        }
+        if (!expired.isEmpty()) {
+            stringRedisTemplate.opsForSet().remove(key, expired.toArray());
+        }
+    }
+
+    /**
+     * 数据库查询手机号对应的用户，不存在则注册，并写入缓存
+     */
+    private UserDTO queryUserByPhone(String phone) {
+        User user = query().eq("phone", phone).one();
+        if (user == null) {
+            user = createUserWithPhone(phone);
+        }
+        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+        stringRedisTemplate.opsForValue().set(LOGIN_PHONE_KEY + phone,
+                JSONUtil.toJsonStr(userDTO), LOGIN_PHONE_TTL, TimeUnit.MINUTES);
+        return userDTO;
+    }
+
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)) {
+            return Result.ok();
+        }
+        if (SignedTokenManager.isSignedToken(token)) {
+            signedTokenManager.revoke(token);
+            return Result.ok();
+        }
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        UserDTO user = UserHolder.getUser();
+        if (user != null) {
+            stringRedisTemplate.opsForSet().remove(LOGIN_TOKENS_KEY + user.getId(), token);
+        }
+        //通知所有实例清除本地缓存
+        loginUserCache.invalidateToken(token);
+        return Result.ok();
+    }
+
+    @Override
+    public Result updateMe(String token, UserDTO userDTO) {
+        Map<String, String> changed = new HashMap<>();
+        if (StrUtil.isNotBlank(userDTO.getNickName())) {
+            changed.put("nickName", userDTO.getNickName());
+        }
+        if (userDTO.getIcon() != null) {
+            changed.put("icon", userDTO.getIcon());
+        }
+        if (changed.isEmpty()) {
+            return Result.ok();
+        }
+        Long userId = UserHolder.getUser().getId();
+        User user = new User();
+        user.setId(userId);
+        user.setNickName(changed.get("nickName"));
+        user.setIcon(changed.get("icon"));
+        updateById(user);
+        //手机号用户缓存和用户资料缓存中的资料已过期
+        cacheInvalidator.invalidate(LOGIN_PHONE_KEY + getById(userId).getPhone());
+        userProfileCache.evict(userId);
+        //签名令牌携带了旧资料，吊销后签发新令牌
+        if (SignedTokenManager.isSignedToken(token)) {
+            UserDTO current = UserHolder.getUser();
+            UserDTO fresh = new UserDTO();
+            fresh.setId(userId);
+            fresh.setNickName(changed.getOrDefault("nickName", current.getNickName()));
+            fresh.setIcon(changed.getOrDefault("icon", current.getIcon()));
+            signedTokenManager.revoke(token);
+            return Result.ok(signedTokenManager.issue(fresh));
+        }
+        //同步该用户所有会话中的用户信息，顺带清理已过期的会话
+        String indexKey = LOGIN_TOKENS_KEY + userId;
+        Set<String> tokens = stringRedisTemplate.opsForSet().members(indexKey);
+        List<String> sessions = new ArrayList<>(tokens == null ? Collections.emptySet() : tokens);
+        if (!sessions.contains(token)) {
+            sessions.add(token);
+        }
+        List<String> fields = new ArrayList<>(changed.size() * 2);
+        changed.forEach((field, value) -> {
+            fields.add(field);
+            fields.add(value);
+        });
+        byte[][] args = fields.stream().map(f -> f.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String t : sessions) {
+                byte[][] keysAndArgs = new byte[args.length + 1][];
+                keysAndArgs[0] = (LOGIN_USER_KEY + t).getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(args, 0, keysAndArgs, 1, args.length);
+                connection.eval(SESSION_UPDATE_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8),
+                        ReturnType.INTEGER, 1, keysAndArgs);
+            }
+            return null;
+        });
+        removeSessions(indexKey, sessions, results, 0L);
+        //通知所有实例清除该用户的本地缓存
+        loginUserCache.invalidateUser(userId);
+        return Result.ok();
+    }
+
     private User createUserWithPhone(String phone) {
         User user = new User();
         user.setPhone(phone);
@@ -2,11 +2,15 @@ package com.hmdp.service.impl;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheInvalidator;
 import com.hmdp.utils.RedisWorker;
 import com.hmdp.utils.UserHolder;
 import org.springframework.aop.framework.AopContext;
@@ -30,6 +34,15 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
     //获取全局唯一id
     @Resource
     private RedisWorker redisWorker;
@@ -39,6 +52,14 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         //查询优惠券
         SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return Result.fail("优惠券不存在");
+        }
+        //查询优惠券所属商铺，下单后计入商铺销量
+        Voucher info = voucherService.getById(voucherId);
+        if (info == null) {
+            return Result.fail("优惠券不存在");
+        }
         //判断秒杀是否开始
         if (voucher.getBeginTime().isAfter(LocalDateTime.now())){
             return Result.fail("秒杀尚未开始");
@@ -49,17 +70,17 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
         //判断库存是否充足
         if (voucher.getStock() < 1) {
-            Result.fail("库存不足");
+            return Result.fail("库存不足");
         }
         Long userId = UserHolder.getUser().getId();
         synchronized (userId.toString().intern()){
             IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            return proxy.createVoucherOrder(voucherId);
+            return proxy.createVoucherOrder(voucherId, info.getShopId());
         }
     }
 
     @Transactional
-    public Result createVoucherOrder(Long voucherId) {
+    public Result createVoucherOrder(Long voucherId, Long shopId) {
         Long userId = UserHolder.getUser().getId();
         //根据优惠券id查询订单
         int count = query().eq("voucher_id", voucherId).eq("user_id", userId).count();
@@ -74,7 +95,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .gt("stock", 0)
                 .update();
         if (!success) {
-            Result.fail("库存不足");
+            return Result.fail("库存不足");
         }
 
         //创建订单
@@ -83,6 +104,11 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
         save(voucherOrder);
+        //事务提交后同步redis库存，并把商铺销量加1，回滚的订单不计入
+        cacheInvalidator.runAfterCommit(() -> {
+            voucherService.decrStock(voucherId);
+            shopService.incrSold(shopId);
+        });
         //返回订单id
         return Result.ok(voucherOrder.getId());
     }
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,11 +8,20 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheInvalidator;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -24,17 +34,74 @@ import java.util.List;
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    private static final DefaultRedisScript<Long> STOCK_DECR_SCRIPT;
+    static {
+        STOCK_DECR_SCRIPT = new DefaultRedisScript<>();
+        STOCK_DECR_SCRIPT.setLocation(new ClassPathResource("stock_decr.lua"));
+        STOCK_DECR_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    /**
+     * 优惠券列表的静态部分缓存在redis，库存用一次MGET从秒杀库存key覆盖
+     */
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        String key = CACHE_VOUCHER_LIST_KEY + shopId;
+        String json = stringRedisTemplate.opsForValue().get(key);
+        List<Voucher> vouchers;
+        if (json != null) {
+            vouchers = JSONUtil.toList(json, Voucher.class);
+        } else {
+            // 查询优惠券信息
+            vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(vouchers),
+                    vouchers.isEmpty() ? CACHE_NULL_TTL : CACHE_VOUCHER_LIST_TTL, TimeUnit.MINUTES);
+        }
+        overlayStock(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    private void overlayStock(List<Voucher> vouchers) {
+        List<Voucher> seckills = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (Voucher voucher : vouchers) {
+            if (voucher.getStock() != null) {
+                seckills.add(voucher);
+                keys.add(SECKILL_STOCK_KEY + voucher.getId());
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (stocks == null) {
+            return;
+        }
+        for (int i = 0; i < seckills.size(); i++) {
+            // 库存未加载到redis时保留数据库中的值
+            String stock = stocks.get(i);
+            if (stock != null) {
+                seckills.get(i).setStock(Math.max(Integer.parseInt(stock), 0));
+            }
+        }
+    }
+
+    @Override
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        cacheInvalidator.invalidate(CACHE_VOUCHER_LIST_KEY + voucher.getShopId());
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -47,6 +114,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 事务提交后保存秒杀库存到redis，并删除优惠券列表缓存
+        cacheInvalidator.runAfterCommit(() -> stringRedisTemplate.opsForValue()
+                .set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString()));
+        cacheInvalidator.invalidate(CACHE_VOUCHER_LIST_KEY + voucher.getShopId());
     }
 
+    /**
+     * 下单成功后同步扣减redis中的库存，应在下单事务提交后调用
+     */
+    @Override
+    public void decrStock(Long voucherId) {
+        stringRedisTemplate.execute(STOCK_DECR_SCRIPT, Collections.singletonList(SECKILL_STOCK_KEY + voucherId));
+    }
 }
@@ -5,22 +5,41 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+import static com.hmdp.utils.RedisConstants.CACHE_VERSION_SUFFIX;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
 
 @Slf4j
 @Component
 public class CacheClient {
+    private static final DefaultRedisScript<Long> CAS_SCRIPT;
+    static {
+        CAS_SCRIPT = new DefaultRedisScript<>();
+        CAS_SCRIPT.setLocation(new ClassPathResource("cache_cas.lua"));
+        CAS_SCRIPT.setResultType(Long.class);
+    }
+
+    //等待互斥锁时重新读取缓存的间隔，毫秒
+    private static final long MUTEX_RETRY_INTERVAL = 50L;
+
     //线程池
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
@@ -28,7 +47,7 @@ public class CacheClient {
     private StringRedisTemplate stringRedisTemplate;
 
     private boolean trylock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10L, TimeUnit.SECONDS);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
     }
 
@@ -40,6 +59,9 @@ public class CacheClient {
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
     }
 
+    /**
+     * 写入逻辑过期缓存
+     */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
         //设置逻辑过期
         RedisData redisData = new RedisData();
@@ -50,6 +72,83 @@ public class CacheClient {
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
     }
 
+    /**
+     * 按版本写入逻辑过期缓存，version为加载数据前用readVersion读到的版本
+     * 加载期间数据被修改(版本计数已增加)时放弃写入，避免旧数据覆盖或回填已删除的缓存
+     */
+    public boolean setWithLogicalExpire(String key, Object value, long version, Long time, TimeUnit unit) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setVersion(version);
+        Long written = stringRedisTemplate.execute(CAS_SCRIPT, Arrays.asList(key, versionKey(key)),
+                JSONUtil.toJsonStr(redisData), String.valueOf(version), "0");
+        if (written == null || written == 0) {
+            log.debug("加载期间数据已被修改，放弃写入：{}", key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 缓存key对应的版本计数key，数据修改提交后由CacheInvalidator.invalidateVersioned加1，永不删除
+     * 用缓存key作为hash tag，与缓存key落在同一个slot，集群下也能在一个脚本中访问
+     */
+    public static String versionKey(String key) {
+        return "{" + key + "}" + CACHE_VERSION_SUFFIX;
+    }
+
+    /**
+     * 读取缓存key当前的版本，没有版本计数时为0，必须在查询数据库之前读取
+     */
+    public long readVersion(String key) {
+        String version = stringRedisTemplate.opsForValue().get(versionKey(key));
+        return version == null ? 0L : Long.parseLong(version);
+    }
+
+    /**
+     * 批量读取版本，一次MGET
+     */
+    public <ID> Map<ID, Long> readVersions(String keyPrefix, Collection<ID> ids) {
+        List<ID> idList = new ArrayList<>(ids);
+        Map<ID, Long> versions = new HashMap<>(idList.size());
+        if (idList.isEmpty()) {
+            return versions;
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(
+                idList.stream().map(id -> versionKey(keyPrefix + id)).collect(Collectors.toList()));
+        for (int i = 0; i < idList.size(); i++) {
+            String value = values == null ? null : values.get(i);
+            versions.put(idList.get(i), value == null ? 0L : Long.parseLong(value));
+        }
+        return versions;
+    }
+
+    /**
+     * 批量按版本写入逻辑过期缓存，一次pipeline，versions中没有的id按版本0写入
+     */
+    public <R, ID> void setWithLogicalExpireBatch(
+            String keyPrefix, Map<ID, R> values, Map<ID, Long> versions, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            values.forEach((id, value) -> {
+                long version = versions.getOrDefault(id, 0L);
+                RedisData redisData = new RedisData();
+                redisData.setData(value);
+                redisData.setExpireTime(expireTime);
+                redisData.setVersion(version);
+                String key = keyPrefix + id;
+                conn.eval(CAS_SCRIPT.getScriptAsString(), ReturnType.INTEGER, 2,
+                        key, versionKey(key), JSONUtil.toJsonStr(redisData), String.valueOf(version), "0");
+            });
+            return null;
+        });
+    }
+
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
@@ -79,8 +178,12 @@ public class CacheClient {
 
         // redis查看缓存
         String JsonShop = stringRedisTemplate.opsForValue().get(key);
+        if (JsonShop == null) {
+            //未命中（未预热或已被删除），加互斥锁查询数据库并写入逻辑过期缓存
+            return loadWithMutex(key, id, type, dbFallback, time, unit);
+        }
+        //命中空值，数据不存在
         if (StrUtil.isBlank(JsonShop)) {
-            //不存在直接返回null
             return null;
         }
         //命中，需要json反序列化为对象
@@ -107,11 +210,12 @@ public class CacheClient {
             //成功开启独立线程，实现缓存重建
             CACHE_REBUILD_EXECUTOR.submit(() -> {
                 try {
-                    //查询数据库
+                    //查询数据库，先读版本
+                    long version = readVersion(key);
                     R r1 = dbFallback.apply(id);
 
                     //重建缓存
-                    this.setWithLogicalExpire(key, r1, time, unit);
+                    writeLoaded(key, r1, version, time, unit);
 
                 } catch (Exception e) {
                     throw new RuntimeException(e);
@@ -125,4 +229,137 @@ public class CacheClient {
         //返回过期的商铺信息
         return r;
     }
-}
\ No newline at end of file
+
+    /**
+     * 缓存未命中时的加载：只有抢到互斥锁的线程查询数据库，其余线程等待后重新读缓存，避免热点key删除后的缓存击穿
+     * 数据不存在时缓存空值，避免缓存穿透；等待超过锁的有效期时直接查询数据库
+     */
+    private <R, ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = LOCK_SHOP_KEY + id;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        while (!trylock(lockKey)) {
+            if (System.currentTimeMillis() > deadline) {
+                return dbFallback.apply(id);
+            }
+            try {
+                Thread.sleep(MUTEX_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                return fromCache(json, type);
+            }
+        }
+        try {
+            //拿到锁后再查一次，等待期间可能已被其他线程写入
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                return fromCache(json, type);
+            }
+            long version = readVersion(key);
+            R r = dbFallback.apply(id);
+            writeLoaded(key, r, version, time, unit);
+            return r;
+        } finally {
+            unlock(lockKey);
+        }
+    }
+
+    /**
+     * 解析逻辑过期缓存中的数据，空值返回null
+     */
+    private static <R> R fromCache(String json, Class<R> type) {
+        if (StrUtil.isBlank(json)) {
+            return null;
+        }
+        return JSONUtil.toBean((JSONObject) JSONUtil.toBean(json, RedisData.class).getData(), type);
+    }
+
+    /**
+     * 写入从数据库加载的数据，数据不存在时按版本写入空值，有效期CACHE_NULL_TTL
+     */
+    private void writeLoaded(String key, Object value, long version, Long time, TimeUnit unit) {
+        if (value != null) {
+            this.setWithLogicalExpire(key, value, version, time, unit);
+            return;
+        }
+        stringRedisTemplate.execute(CAS_SCRIPT, Arrays.asList(key, versionKey(key)),
+                "", String.valueOf(version), String.valueOf(TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL)));
+    }
+
+    /**
+     * 批量查询逻辑过期缓存，一次MGET，请求线程不访问数据库
+     * 过期或缺失的条目交给独立线程重建，过期的先返回旧值，缺失的不在返回结果中
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return queryBatchWithLogicalExpire(keyPrefix, ids, type, dbFallback, null, time, unit);
+    }
+
+    /**
+     * 同上，缺失的条目由missLoader在请求线程中一次批量查询并按版本回写，不再异步重建
+     * 过期的条目仍由dbFallback异步重建
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<ID, R> dbFallback,
+            Function<List<ID>, Map<ID, R>> missLoader, Long time, TimeUnit unit) {
+        List<ID> idList = new ArrayList<>(ids);
+        Map<ID, R> result = new HashMap<>(idList.size());
+        if (idList.isEmpty()) {
+            return result;
+        }
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(
+                idList.stream().map(id -> keyPrefix + id).collect(Collectors.toList()));
+        LocalDateTime now = LocalDateTime.now();
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < idList.size(); i++) {
+            ID id = idList.get(i);
+            String json = jsons == null ? null : jsons.get(i);
+            if (json == null) {
+                if (missLoader != null) {
+                    misses.add(id);
+                } else {
+                    rebuildAsync(keyPrefix + id, id, dbFallback, time, unit);
+                }
+                continue;
+            }
+            //空值，数据不存在
+            if (StrUtil.isBlank(json)) {
+                continue;
+            }
+            RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+            result.put(id, JSONUtil.toBean((JSONObject) redisData.getData(), type));
+            if (!redisData.getExpireTime().isAfter(now)) {
+                rebuildAsync(keyPrefix + id, id, dbFallback, time, unit);
+            }
+        }
+        if (!misses.isEmpty()) {
+            //先读版本再查询数据库
+            Map<ID, Long> versions = readVersions(keyPrefix, misses);
+            Map<ID, R> loaded = missLoader.apply(misses);
+            setWithLogicalExpireBatch(keyPrefix, loaded, versions, time, unit);
+            result.putAll(loaded);
+        }
+        return result;
+    }
+
+    private <R, ID> void rebuildAsync(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = LOCK_SHOP_KEY + id;
+        if (!trylock(lockKey)) {
+            return;
+        }
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                long version = readVersion(key);
+                R r = dbFallback.apply(id);
+                writeLoaded(key, r, version, time, unit);
+            } catch (Exception e) {
+                log.error("缓存重建失败，key：{}", key, e);
+            } finally {
+                unlock(lockKey);
+            }
+        });
+    }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存失效：事务中要删除的key先记录在当前事务的outbox里，提交后再批量删除
+ * 删除用pipeline分批执行，并在延迟一段时间后再删一次，清掉提交前被并发读回填的旧值
+ * 删除失败的批次按退避间隔重试
+ * 按版本写入的缓存(CacheClient.setWithLogicalExpire带version)用invalidateVersioned，删除前先把版本计数加1
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    private static final int BATCH_SIZE = 500;
+    //延迟双删的间隔，毫秒
+    private static final long SECOND_DELETE_DELAY = 500L;
+    private static final int MAX_RETRIES = 5;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-invalidator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    public void invalidate(String... keys) {
+        invalidate(Arrays.asList(keys));
+    }
+
+    /**
+     * 在事务中调用时提交后才删除，回滚则不删除；不在事务中时立即删除
+     */
+    public void invalidate(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publish(new ArrayList<>(keys), Collections.emptyList());
+            return;
+        }
+        currentOutbox().keys.addAll(keys);
+    }
+
+    /**
+     * 同invalidate，删除前先把缓存key的版本计数加1，加载期间读到旧数据的重建请求会放弃写入
+     */
+    public void invalidateVersioned(String... keys) {
+        List<String> list = Arrays.asList(keys);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publish(list, list);
+            return;
+        }
+        Outbox outbox = currentOutbox();
+        outbox.keys.addAll(list);
+        outbox.versioned.addAll(list);
+    }
+
+    private Outbox currentOutbox() {
+        Outbox outbox = (Outbox) TransactionSynchronizationManager.getResource(this);
+        if (outbox == null) {
+            outbox = new Outbox();
+            TransactionSynchronizationManager.bindResource(this, outbox);
+            TransactionSynchronizationManager.registerSynchronization(outbox);
+        }
+        return outbox;
+    }
+
+    /**
+     * 在事务提交后执行，不在事务中时立即执行
+     */
+    public void runAfterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private void publish(List<String> keys, List<String> versioned) {
+        delete(keys, versioned, 0);
+        scheduler.schedule(() -> delete(keys, Collections.emptyList(), 0), SECOND_DELETE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 先INCR版本计数，再每BATCH_SIZE个key一条DEL，所有命令在一个pipeline中发出
+     */
+    private void delete(List<String> keys, List<String> versioned, int attempt) {
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                versioned.forEach(key -> conn.incr(CacheClient.versionKey(key)));
+                for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+                    conn.del(keys.subList(i, Math.min(i + BATCH_SIZE, keys.size())).toArray(new String[0]));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            if (attempt >= MAX_RETRIES) {
+                log.error("缓存删除失败，放弃重试，等待过期：{}", keys, e);
+                return;
+            }
+            long delay = SECOND_DELETE_DELAY << attempt;
+            log.warn("缓存删除失败，{}ms后第{}次重试", delay, attempt + 1, e);
+            scheduler.schedule(() -> delete(keys, versioned, attempt + 1), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * 当前事务待删除的key
+     */
+    private class Outbox implements TransactionSynchronization {
+        private final Set<String> keys = new LinkedHashSet<>();
+        private final Set<String> versioned = new LinkedHashSet<>();
+
+        @Override
+        public void afterCommit() {
+            publish(new ArrayList<>(keys), new ArrayList<>(versioned));
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(CacheInvalidator.this);
+        }
+    }
+}
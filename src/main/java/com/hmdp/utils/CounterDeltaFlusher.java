@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.CollUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 计数增量写回：计数先在redis的hash中累加(id -> 增量)，定时取出整个hash分批写回数据库
+ * 写回失败的批次放回hash，下次重试
+ */
+@Slf4j
+@Component
+public class CounterDeltaFlusher {
+
+    private static final DefaultRedisScript<List> HASH_DRAIN_SCRIPT;
+    static {
+        HASH_DRAIN_SCRIPT = new DefaultRedisScript<>();
+        HASH_DRAIN_SCRIPT.setLocation(new ClassPathResource("hash_drain.lua"));
+        HASH_DRAIN_SCRIPT.setResultType(List.class);
+    }
+
+    //批量写入时每批的条数
+    private static final int BATCH_SIZE = 500;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    public void flush(String key, Consumer<Map<Long, Long>> writer) {
+        List<String> entries = stringRedisTemplate.execute(HASH_DRAIN_SCRIPT, Collections.singletonList(key));
+        if (CollUtil.isEmpty(entries)) {
+            return;
+        }
+        Map<Long, Long> deltas = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < entries.size(); i += 2) {
+            long delta = Long.parseLong(entries.get(i + 1));
+            if (delta != 0) {
+                deltas.put(Long.valueOf(entries.get(i)), delta);
+            }
+        }
+        Map<Long, Long> batch = new LinkedHashMap<>();
+        for (Map.Entry<Long, Long> entry : deltas.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() >= BATCH_SIZE) {
+                flushBatch(key, batch, writer);
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            flushBatch(key, batch, writer);
+        }
+    }
+
+    private void flushBatch(String key, Map<Long, Long> batch, Consumer<Map<Long, Long>> writer) {
+        try {
+            writer.accept(batch);
+        } catch (Exception e) {
+            log.error("计数增量写回失败，增量放回redis等待重试，key：{}", key, e);
+            // 放回增量，下次重试
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                batch.forEach((id, delta) -> conn.hIncrBy(key, id.toString(), delta));
+                return null;
+            });
+        }
+    }
+}
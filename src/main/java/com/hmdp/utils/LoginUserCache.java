@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.CacheObj;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 登录用户本地缓存，token -> UserDTO
+ * 短TTL + 容量上限，登出和资料修改时通过Redis pub/sub通知所有实例失效
+ */
+@Slf4j
+@Component
+public class LoginUserCache implements MessageListener {
+
+    private static final String TOKEN_PREFIX = "token:";
+    private static final String USER_PREFIX = "user:";
+
+    private final LRUCache<String, UserDTO> cache =
+            CacheUtil.newLRUCache(LOGIN_USER_CACHE_SIZE, TimeUnit.SECONDS.toMillis(LOGIN_USER_CACHE_TTL));
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    public UserDTO get(String token) {
+        //不刷新访问时间，保证条目最多存活TTL
+        return cache.get(token, false);
+    }
+
+    public void put(String token, UserDTO userDTO) {
+        cache.put(token, userDTO);
+    }
+
+    /**
+     * 使某个token失效（登出）
+     */
+    public void invalidateToken(String token) {
+        cache.remove(token);
+        stringRedisTemplate.convertAndSend(LOGIN_INVALIDATE_CHANNEL, TOKEN_PREFIX + token);
+    }
+
+    /**
+     * 使某个用户的所有token失效（资料修改）
+     */
+    public void invalidateUser(Long userId) {
+        removeUser(userId);
+        stringRedisTemplate.convertAndSend(LOGIN_INVALIDATE_CHANNEL, USER_PREFIX + userId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.startsWith(TOKEN_PREFIX)) {
+            cache.remove(StrUtil.removePrefix(body, TOKEN_PREFIX));
+        } else if (body.startsWith(USER_PREFIX)) {
+            removeUser(Long.valueOf(StrUtil.removePrefix(body, USER_PREFIX)));
+        } else {
+            log.warn("未知的登录失效消息：{}", body);
+        }
+    }
+
+    private void removeUser(Long userId) {
+        List<String> tokens = new ArrayList<>();
+        Iterator<CacheObj<String, UserDTO>> it = cache.cacheObjIterator();
+        while (it.hasNext()) {
+            CacheObj<String, UserDTO> obj = it.next();
+            if (userId.equals(obj.getValue().getId())) {
+                tokens.add(obj.getKey());
+            }
+        }
+        tokens.forEach(cache::remove);
+    }
+}
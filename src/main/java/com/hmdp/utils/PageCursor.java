@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
+
+import com.hmdp.dto.CursorResult;
+import com.hmdp.dto.Result;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 游标分页：游标是上一页最后一条记录的id编码后的不透明字符串
+ * 每页多查一条用来判断是否还有下一页，不需要COUNT查询
+ */
+public class PageCursor {
+
+    private static final String PREFIX = "id:";
+
+    public static String encode(Long lastId) {
+        return Base64.encodeUrlSafe(PREFIX + lastId);
+    }
+
+    /**
+     * 解析游标，空游标表示第一页返回null，非法游标抛出IllegalArgumentException
+     */
+    public static Long decode(String cursor) {
+        if (StrUtil.isBlank(cursor)) {
+            return null;
+        }
+        try {
+            String raw = Base64.decodeStr(cursor, StandardCharsets.UTF_8);
+            if (raw.startsWith(PREFIX)) {
+                return Long.valueOf(raw.substring(PREFIX.length()));
+            }
+        } catch (Exception ignored) {
+            // 统一按非法游标处理
+        }
+        throw new IllegalArgumentException("无效的分页游标");
+    }
+
+    /**
+     * 截掉多查的一条，返回下一页游标，没有下一页返回null
+     * @param rows 按pageSize + 1查询的结果
+     */
+    public static <T> String next(List<T> rows, int pageSize, Function<T, Long> idGetter) {
+        if (rows.size() <= pageSize) {
+            return null;
+        }
+        rows.subList(pageSize, rows.size()).clear();
+        return encode(idGetter.apply(rows.get(pageSize - 1)));
+    }
+
+    /**
+     * 按游标查询一页：解析游标，按(上一页最后的id, pageSize + 1)查询，截断并生成下一页游标
+     * @param loader 参数为上一页最后的id（第一页为null）和查询条数
+     * @param filler 当前页非空时对记录做补充，如填充作者，可为null
+     * @return 非法游标返回失败，否则返回CursorResult
+     */
+    public static <T> Result page(String cursor, int pageSize, Function<T, Long> idGetter,
+                                  BiFunction<Long, Integer, List<T>> loader, Consumer<List<T>> filler) {
+        Long lastId;
+        try {
+            lastId = decode(cursor);
+        } catch (IllegalArgumentException e) {
+            return Result.fail("无效的分页游标！");
+        }
+        List<T> rows = loader.apply(lastId, pageSize + 1);
+        String next = next(rows, pageSize, idGetter);
+        if (filler != null && !rows.isEmpty()) {
+            filler.accept(rows);
+        }
+        return Result.ok(new CursorResult<>(rows, next));
+    }
+}
@@ -3,22 +3,76 @@ package com.hmdp.utils;
 public class RedisConstants {
     public static final String LOGIN_CODE_KEY = "login:code:";
     public static final Long LOGIN_CODE_TTL = 2L;
+    public static final String LOGIN_CODE_LOCK_KEY = "login:code:lock:";
+    public static final Long LOGIN_CODE_INTERVAL = 60L;
+    public static final String LOGIN_CODE_DAILY_KEY = "login:code:daily:";
+    public static final Long LOGIN_CODE_DAILY_MAX = 10L;
+    public static final String LOGIN_CODE_ATTEMPT_KEY = "login:code:attempt:";
+    public static final Long LOGIN_CODE_MAX_ATTEMPTS = 5L;
+    public static final String LOGIN_PHONE_KEY = "login:phone:";
+    public static final Long LOGIN_PHONE_TTL = 30L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_TOKENS_KEY = "login:tokens:";
+    public static final Long LOGIN_TOKENS_PRUNE_SIZE = 16L;
+    public static final String LOGIN_INVALIDATE_CHANNEL = "login:invalidate";
+    public static final Long LOGIN_USER_CACHE_TTL = 30L;
+    public static final int LOGIN_USER_CACHE_SIZE = 10000;
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKE_CHANNEL = "login:revoke";
 
     public static final Long CACHE_NULL_TTL = 2L;
+    public static final String CACHE_VERSION_SUFFIX = ":ver";
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_USER_INFO_KEY = "cache:user:info:";
+    public static final Long CACHE_USER_TTL = 30L;
+
     public static final String CACHE_TYPE_LIST_KEY = "cache:type:list";
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shop:type:ver:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher:list:";
+    public static final Long CACHE_VOUCHER_LIST_TTL = 30L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String CACHE_BLOG_CREATED_KEY = "cache:blog:created:";
+    public static final Long CACHE_BLOG_CREATED_TTL = 30L;
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:delta:liked";
+    public static final String BLOG_COMMENTS_DELTA_KEY = "blog:delta:comments";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final Long BLOG_HOT_HALF_LIFE = 86400L;
+    public static final Long BLOG_HOT_MAX = 1000L;
+    public static final String LOCK_BLOG_HOT_KEY = "lock:blog:hot";
+    public static final Long LOCK_BLOG_HOT_TTL = 10L;
     public static final String FEED_KEY = "feed:";
+    public static final Long FEED_MAX = 1000L;
+    public static final String FEED_OUTBOX_KEY = "feed:out:";
+    public static final String FEED_BIG_KEY = "feed:big";
+    public static final Long FEED_PUSH_THRESHOLD = 5000L;
+    public static final Long FEED_PAGE_CACHE_TTL = 5L;
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final Long FOLLOWS_TTL = 30L;
+    public static final String FOLLOW_COUNT_KEY = "follow:count:";
+    public static final Long FOLLOW_COUNT_TTL = 30L;
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_RANK_KEY = "shop:rank:";
+    public static final String SHOP_SOLD_DELTA_KEY = "shop:delta:sold";
+    public static final String SHOP_COMMENTS_DELTA_KEY = "shop:delta:comments";
+    public static final String LOCK_SHOP_RANK_KEY = "lock:shop:rank";
+    public static final Long LOCK_SHOP_RANK_TTL = 600L;
+    public static final String SHOP_GEO_CHANNEL = "shop:geo:update";
+    public static final String SHOP_SEARCH_CHANNEL = "shop:search:update";
+    public static final String UV_KEY = "uv:";
+    public static final Long UV_TTL = 8L;
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String USER_SIGN_BACKUP_KEY = "sign:backup:";
+    public static final Long USER_SIGN_BACKFILL_MAX = 3L;
+    public static final Long USER_SIGN_ARCHIVE_TTL = 31L;
 }
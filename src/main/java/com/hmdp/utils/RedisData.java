@@ -8,4 +8,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    //数据版本，加载数据前读到的版本计数
+    private Long version;
 }
@@ -2,20 +2,43 @@ package com.hmdp.utils;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
+    private static final DefaultRedisScript<List> SESSION_REFRESH_SCRIPT;
+    static {
+        SESSION_REFRESH_SCRIPT = new DefaultRedisScript<>();
+        SESSION_REFRESH_SCRIPT.setLocation(new ClassPathResource("session_refresh.lua"));
+        SESSION_REFRESH_SCRIPT.setResultType(List.class);
+    }
+
     private StringRedisTemplate stringRedisTemplate;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate){
+    private LoginUserCache loginUserCache;
+
+    private SignedTokenManager signedTokenManager;
+
+    //剩余有效期低于该值（秒）才续期
+    private final long refreshThreshold;
+
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, LoginUserCache loginUserCache,
+                                   SignedTokenManager signedTokenManager, double refreshRatio){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.loginUserCache = loginUserCache;
+        this.signedTokenManager = signedTokenManager;
+        this.refreshThreshold = (long) (TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL) * refreshRatio);
     }
 
     @Override
@@ -32,15 +55,38 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 //        }
 //        UserHolder.saveUser((UserDTO)user);
 //        return true;
+        //签名令牌，本地验签即可
+        if (SignedTokenManager.isSignedToken(token)){
+            UserDTO userDTO = signedTokenManager.verify(token);
+            if (userDTO != null){
+                UserHolder.saveUser(userDTO);
+            }
+            return true;
+        }
+        //先查本地缓存，命中则不访问redis
+        UserDTO cached = loginUserCache.get(token);
+        if (cached != null){
+            UserHolder.saveUser(cached);
+            return true;
+        }
         String key = RedisConstants.LOGIN_USER_KEY + token;
-        Map<Object, Object> usermap = stringRedisTemplate.opsForHash().entries(key);
-        if (usermap.isEmpty()){
+        //查询用户并按需刷新token有效期
+        List<String> fields = stringRedisTemplate.execute(
+                SESSION_REFRESH_SCRIPT,
+                Collections.singletonList(key),
+                String.valueOf(TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL)),
+                String.valueOf(refreshThreshold)
+        );
+        if (fields == null || fields.isEmpty()){
             return true;
         }
+        Map<String, Object> usermap = new HashMap<>(fields.size());
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            usermap.put(fields.get(i), fields.get(i + 1));
+        }
         UserDTO userDTO = BeanUtil.fillBeanWithMap(usermap, new UserDTO(), false);
         UserHolder.saveUser(userDTO);
-        //刷新token
-        stringRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        loginUserCache.put(token, userDTO);
         return true;
     }
 
@@ -0,0 +1,243 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANNEL;
+
+/**
+ * 商铺坐标的本地空间索引，每个类型一个网格，格子内用原始类型数组存储
+ * 启动时全量构建，商铺新增、修改时通过redis pub/sub通知所有实例增量更新
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex implements MessageListener {
+
+    //网格边长，度，约1.1公里
+    private static final double CELL_SIZE = 0.01;
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Map<Long, TypeGrid> grids = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    @Data
+    @AllArgsConstructor
+    public static class Nearby {
+        private long id;
+        //距离，米
+        private double distance;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 全量构建完成后调用，此后查询走本地索引
+     */
+    public void markReady() {
+        ready = true;
+    }
+
+    /**
+     * 本实例写入索引
+     */
+    public void put(long id, long typeId, double x, double y) {
+        // 一个商铺只属于一个类型，先从其它类型中移除
+        grids.forEach((type, grid) -> {
+            if (type != typeId) {
+                grid.remove(id);
+            }
+        });
+        grids.computeIfAbsent(typeId, k -> new TypeGrid()).put(id, x, y);
+    }
+
+    /**
+     * 写入本实例并通知其它实例
+     */
+    public void publish(long id, long typeId, double x, double y) {
+        put(id, typeId, x, y);
+        stringRedisTemplate.convertAndSend(SHOP_GEO_CHANNEL, id + "," + typeId + "," + x + "," + y);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String[] parts = body.split(",");
+        if (parts.length != 4) {
+            log.warn("未知的商铺坐标消息：{}", body);
+            return;
+        }
+        put(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+    }
+
+    /**
+     * 查询半径内最近的limit个商铺，按距离升序
+     */
+    public List<Nearby> nearest(long typeId, double x, double y, double radius, int limit) {
+        TypeGrid grid = grids.get(typeId);
+        if (grid == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        return grid.nearest(x, y, radius, limit);
+    }
+
+    static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double dLat = lat2 - lat1;
+        double dLng = Math.toRadians(x2 - x1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    private static int cellOf(double degree) {
+        return (int) Math.floor(degree / CELL_SIZE);
+    }
+
+    /**
+     * 一个类型的网格
+     */
+    private static class TypeGrid {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<Long, Cell> cells = new HashMap<>();
+        //商铺id -> 所在格子
+        private final Map<Long, Long> locations = new HashMap<>();
+
+        void put(long id, double x, double y) {
+            long key = cellKey(cellOf(x), cellOf(y));
+            lock.writeLock().lock();
+            try {
+                Long old = locations.put(id, key);
+                if (old != null) {
+                    cells.get(old).remove(id);
+                }
+                cells.computeIfAbsent(key, k -> new Cell()).add(id, x, y);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(long id) {
+            lock.writeLock().lock();
+            try {
+                Long old = locations.remove(id);
+                if (old != null) {
+                    cells.get(old).remove(id);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * 从中心格子一圈圈向外扫描，当前圈之外的格子不可能比已找到的第limit个更近时停止
+         */
+        List<Nearby> nearest(double x, double y, double radius, int limit) {
+            // 经度方向一格的米数随纬度变小，按较小值估算可以保证不漏
+            double cellMeters = CELL_SIZE * METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(Math.abs(y) + CELL_SIZE)), 0.01);
+            int maxRing = (int) Math.ceil(radius / cellMeters) + 1;
+            int cx = cellOf(x);
+            int cy = cellOf(y);
+            // 大顶堆保存当前最近的limit个
+            PriorityQueue<Nearby> heap = new PriorityQueue<>(limit + 1,
+                    (a, b) -> Double.compare(b.getDistance(), a.getDistance()));
+            lock.readLock().lock();
+            try {
+                for (int ring = 0; ring <= maxRing; ring++) {
+                    if (heap.size() >= limit && heap.peek().getDistance() <= (ring - 1) * cellMeters) {
+                        break;
+                    }
+                    for (int i = cx - ring; i <= cx + ring; i++) {
+                        for (int j = cy - ring; j <= cy + ring; j++) {
+                            if (Math.abs(i - cx) != ring && Math.abs(j - cy) != ring) {
+                                continue;
+                            }
+                            Cell cell = cells.get(cellKey(i, j));
+                            if (cell != null) {
+                                cell.collect(x, y, radius, limit, heap);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            List<Nearby> result = new ArrayList<>(heap);
+            result.sort(Comparator.comparingDouble(Nearby::getDistance));
+            return result;
+        }
+    }
+
+    /**
+     * 格子，按列存放id和坐标
+     */
+    private static class Cell {
+        private long[] ids = new long[4];
+        private double[] xs = new double[4];
+        private double[] ys = new double[4];
+        private int size;
+
+        void add(long id, double x, double y) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+
+        void remove(long id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    // 用最后一个元素填补空位
+                    size--;
+                    ids[i] = ids[size];
+                    xs[i] = xs[size];
+                    ys[i] = ys[size];
+                    return;
+                }
+            }
+        }
+
+        void collect(double x, double y, double radius, int limit, PriorityQueue<Nearby> heap) {
+            for (int i = 0; i < size; i++) {
+                double d = distance(x, y, xs[i], ys[i]);
+                if (d > radius) {
+                    continue;
+                }
+                if (heap.size() < limit) {
+                    heap.offer(new Nearby(ids[i], d));
+                } else if (d < heap.peek().getDistance()) {
+                    heap.poll();
+                    heap.offer(new Nearby(ids[i], d));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.text.csv.CsvReadConfig;
+import cn.hutool.core.text.csv.CsvReader;
+import cn.hutool.core.text.csv.CsvRow;
+import cn.hutool.core.util.StrUtil;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * 流式读取商铺导入数据，逐行返回，不把整个请求体读入内存
+ * JSON：商铺对象数组；CSV：首行为表头，列名为Shop的属性名
+ */
+public class ShopImportReader implements Closeable {
+
+    //redis GEO支持的经纬度范围
+    private static final double GEO_MAX_LONGITUDE = 180;
+    private static final double GEO_MAX_LATITUDE = 85.05112878;
+
+    @Data
+    @AllArgsConstructor
+    public static class Row {
+        //行号，从1开始
+        private int index;
+        private Shop shop;
+        //解析失败的原因，成功为null
+        private String error;
+    }
+
+    private final ObjectMapper objectMapper;
+    private JsonParser jsonParser;
+    private CsvReader csvReader;
+    private Iterator<CsvRow> csvRows;
+    private int index;
+
+    private ShopImportReader(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    public static ShopImportReader open(InputStream in, String contentType, ObjectMapper objectMapper) throws IOException {
+        ShopImportReader reader = new ShopImportReader(objectMapper);
+        if (contentType != null && contentType.toLowerCase().contains("csv")) {
+            CsvReadConfig config = CsvReadConfig.defaultConfig();
+            config.setContainsHeader(true);
+            config.setSkipEmptyRows(true);
+            reader.csvReader = new CsvReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), config);
+            reader.csvRows = reader.csvReader.iterator();
+            return reader;
+        }
+        reader.jsonParser = objectMapper.getFactory().createParser(in);
+        if (reader.jsonParser.nextToken() != JsonToken.START_ARRAY) {
+            reader.close();
+            throw new IOException("JSON导入数据必须是数组");
+        }
+        return reader;
+    }
+
+    /**
+     * 读取下一行，没有更多数据返回null
+     */
+    public Row next() throws IOException {
+        if (csvRows != null) {
+            if (!csvRows.hasNext()) {
+                return null;
+            }
+            CsvRow row = csvRows.next();
+            index++;
+            try {
+                // 不忽略转换错误，格式不对的值报错而不是变成null
+                return new Row(index, BeanUtil.fillBeanWithMap(row.getFieldMap(), new Shop(), false), null);
+            } catch (Exception e) {
+                return new Row(index, null, "字段格式错误");
+            }
+        }
+        JsonToken token = jsonParser.nextToken();
+        if (token == null || token == JsonToken.END_ARRAY) {
+            return null;
+        }
+        index++;
+        if (token != JsonToken.START_OBJECT) {
+            // 数组元素不是对象时跳过整个元素，记为错误行
+            jsonParser.skipChildren();
+            return new Row(index, null, "数组元素必须是商铺对象");
+        }
+        // 先读成树，绑定失败时不影响后续行的解析
+        JsonNode node = jsonParser.readValueAsTree();
+        try {
+            return new Row(index, objectMapper.treeToValue(node, Shop.class), null);
+        } catch (IOException e) {
+            return new Row(index, null, "字段格式错误");
+        }
+    }
+
+    /**
+     * 校验导入的商铺，通过时重置由系统维护的字段
+     * @return 不合法的原因，合法返回null
+     */
+    public static String validate(Shop shop) {
+        if (StrUtil.isBlank(shop.getName()) || shop.getName().length() > 128) {
+            return "商铺名称不能为空且不能超过128个字符";
+        }
+        if (shop.getTypeId() == null) {
+            return "商铺类型不能为空";
+        }
+        if (StrUtil.isBlank(shop.getAddress()) || shop.getAddress().length() > 255) {
+            return "地址不能为空且不能超过255个字符";
+        }
+        if (shop.getImages() == null || shop.getImages().length() > 1024) {
+            return "图片不能为空且不能超过1024个字符";
+        }
+        if (shop.getX() == null || shop.getY() == null
+                || Math.abs(shop.getX()) > GEO_MAX_LONGITUDE || Math.abs(shop.getY()) > GEO_MAX_LATITUDE) {
+            return "坐标不合法";
+        }
+        if (shop.getScore() != null && (shop.getScore() < 0 || shop.getScore() > 50)) {
+            return "评分必须在0~50之间";
+        }
+        // 统计字段由系统维护
+        shop.setId(null).setSold(0).setComments(0).setCreateTime(null).setUpdateTime(null);
+        if (shop.getScore() == null) {
+            shop.setScore(0);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (jsonParser != null) {
+            jsonParser.close();
+        }
+        if (csvReader != null) {
+            csvReader.close();
+        }
+    }
+}
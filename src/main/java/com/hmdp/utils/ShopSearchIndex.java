@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.hmdp.utils.RedisConstants.SHOP_SEARCH_CHANNEL;
+
+/**
+ * 商铺名称和商圈的本地倒排索引，按字符二元组（单字查询用一元组）切分，中文不需要分词
+ * 启动时全量构建，商铺新增、修改时通过redis pub/sub通知所有实例增量更新
+ */
+@Slf4j
+@Component
+public class ShopSearchIndex implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //gram -> 商铺id
+    private final Map<String, Set<Long>> postings = new HashMap<>();
+    //商铺id -> 归一化后的名称和商圈
+    private final Map<Long, String[]> docs = new HashMap<>();
+
+    private volatile boolean ready;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void markReady() {
+        ready = true;
+    }
+
+    public void put(long id, String name, String area) {
+        String[] doc = new String[]{normalize(name), normalize(area)};
+        lock.writeLock().lock();
+        try {
+            String[] old = docs.put(id, doc);
+            if (old != null) {
+                for (String gram : grams(old)) {
+                    Set<Long> ids = postings.get(gram);
+                    if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                        postings.remove(gram);
+                    }
+                }
+            }
+            for (String gram : grams(doc)) {
+                postings.computeIfAbsent(gram, k -> new HashSet<>()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 写入本实例并通知其它实例
+     */
+    public void publish(long id, String name, String area) {
+        put(id, name, area);
+        JSONObject body = new JSONObject();
+        body.set("id", id);
+        body.set("name", name);
+        body.set("area", area);
+        stringRedisTemplate.convertAndSend(SHOP_SEARCH_CHANNEL, body.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        JSONObject body = JSONUtil.parseObj(new String(message.getBody(), StandardCharsets.UTF_8));
+        Long id = body.getLong("id");
+        if (id == null) {
+            log.warn("未知的商铺索引消息：{}", body);
+            return;
+        }
+        put(id, body.getStr("name"), body.getStr("area"));
+    }
+
+    /**
+     * 搜索关键字，返回排好序的一页商铺id
+     * 所有gram都命中的商铺才是候选，候选中名称或商圈完整包含关键字的才返回，名称包含的排在前面
+     */
+    public List<Long> search(String keyword, int from, int size) {
+        String query = normalize(keyword);
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> queryGrams = query.length() == 1 ? Collections.singleton(query) : bigrams(query);
+        List<long[]> scored = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            // 从最短的倒排表开始求交集
+            List<Set<Long>> lists = new ArrayList<>(queryGrams.size());
+            for (String gram : queryGrams) {
+                Set<Long> ids = postings.get(gram);
+                if (ids == null) {
+                    return Collections.emptyList();
+                }
+                lists.add(ids);
+            }
+            lists.sort(Comparator.comparingInt(Set::size));
+            outer:
+            for (Long id : lists.get(0)) {
+                for (int i = 1; i < lists.size(); i++) {
+                    if (!lists.get(i).contains(id)) {
+                        continue outer;
+                    }
+                }
+                // gram可能来自不同字段或不相邻的位置，再确认名称或商圈确实包含关键字
+                String[] doc = docs.get(id);
+                if (!doc[0].contains(query) && !doc[1].contains(query)) {
+                    continue;
+                }
+                scored.add(new long[]{id, score(doc, query)});
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        scored.sort((a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[0], b[0]));
+        List<Long> page = new ArrayList<>(size);
+        for (int i = from; i < scored.size() && i < from + size; i++) {
+            page.add(scored.get(i)[0]);
+        }
+        return page;
+    }
+
+    private static long score(String[] doc, String query) {
+        String name = doc[0];
+        String area = doc[1];
+        long score = 0;
+        if (name.startsWith(query)) {
+            score += 300;
+        } else if (name.contains(query)) {
+            score += 200;
+        }
+        if (area.contains(query)) {
+            score += 100;
+        }
+        // 名称越短越接近关键字
+        return score - Math.min(name.length(), 99);
+    }
+
+    private static Set<String> grams(String[] doc) {
+        Set<String> grams = new HashSet<>();
+        for (String text : doc) {
+            for (int i = 0; i < text.length(); i++) {
+                grams.add(text.substring(i, i + 1));
+            }
+            grams.addAll(bigrams(text));
+        }
+        return grams;
+    }
+
+    private static Set<String> bigrams(String text) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + 1 < text.length(); i++) {
+            grams.add(text.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    /**
+     * 转小写并去掉空白和标点
+     */
+    private static String normalize(String text) {
+        if (StrUtil.isBlank(text)) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (char c : text.toLowerCase().toCharArray()) {
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
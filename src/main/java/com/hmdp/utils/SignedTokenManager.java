@@ -0,0 +1,175 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 无状态登录令牌：payload.signature，payload中携带UserDTO和过期时间，HMAC-SHA256签名
+ * 校验完全在本地完成，只有登出的令牌会进入redis吊销集合，本地定时同步该集合
+ */
+@Slf4j
+@Component
+public class SignedTokenManager implements MessageListener {
+
+    public static final String MODE_SIGNED = "signed";
+    private static final String ALGORITHM = "HmacSHA256";
+
+    @Value("${hmdp.login.mode:redis}")
+    private String mode;
+
+    @Value("${hmdp.login.secret:}")
+    private String secret;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private ThreadLocal<Mac> macHolder;
+
+    //本地吊销集合，jti
+    private volatile Set<String> revoked = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        if (StrUtil.isBlank(secret)) {
+            throw new IllegalStateException("hmdp.login.mode=signed 时必须配置 hmdp.login.secret");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        macHolder = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        syncRevoked();
+    }
+
+    public boolean isEnabled() {
+        return MODE_SIGNED.equals(mode);
+    }
+
+    /**
+     * 是否是签名令牌，redis会话令牌是不含'.'的uuid
+     */
+    public static boolean isSignedToken(String token) {
+        return token != null && token.indexOf('.') > 0;
+    }
+
+    public String issue(UserDTO userDTO) {
+        JSONObject payload = new JSONObject();
+        payload.set("id", userDTO.getId());
+        payload.set("nickName", userDTO.getNickName());
+        payload.set("icon", userDTO.getIcon());
+        payload.set("jti", UUID.fastUUID().toString(true));
+        payload.set("exp", System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL));
+        String body = Base64.encodeUrlSafe(payload.toString());
+        return body + "." + Base64.encodeUrlSafe(sign(body));
+    }
+
+    /**
+     * 校验令牌，失败返回null
+     */
+    public UserDTO verify(String token) {
+        JSONObject payload = parse(token);
+        if (payload == null || revoked.contains(payload.getStr("jti"))) {
+            return null;
+        }
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(payload.getLong("id"));
+        userDTO.setNickName(payload.getStr("nickName"));
+        userDTO.setIcon(payload.getStr("icon"));
+        return userDTO;
+    }
+
+    /**
+     * 吊销令牌，记录到redis直到令牌自然过期，并通知其它实例
+     */
+    public void revoke(String token) {
+        JSONObject payload = parse(token);
+        if (payload == null) {
+            return;
+        }
+        String jti = payload.getStr("jti");
+        revoked.add(jti);
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, jti, payload.getLong("exp"));
+        stringRedisTemplate.convertAndSend(LOGIN_REVOKE_CHANNEL, jti);
+    }
+
+    /**
+     * 定时从redis同步吊销集合，同时清理已过期的记录
+     */
+    @Scheduled(fixedDelay = 30000L)
+    public void syncRevoked() {
+        if (!isEnabled()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, 0, System.currentTimeMillis());
+        Set<String> jtis = stringRedisTemplate.opsForZSet().range(LOGIN_REVOKED_KEY, 0, -1);
+        Set<String> snapshot = ConcurrentHashMap.newKeySet();
+        snapshot.addAll(jtis == null ? Collections.<String>emptySet() : jtis);
+        revoked = snapshot;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        revoked.add(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private JSONObject parse(String token) {
+        if (!isEnabled() || !isSignedToken(token)) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        String body = token.substring(0, dot);
+        byte[] signature;
+        try {
+            signature = Base64.decode(token.substring(dot + 1));
+        } catch (Exception e) {
+            return null;
+        }
+        //常量时间比较，避免时序攻击
+        if (!MessageDigest.isEqual(sign(body), signature)) {
+            return null;
+        }
+        JSONObject payload = JSONUtil.parseObj(Base64.decodeStr(body));
+        Long exp = payload.getLong("exp");
+        if (exp == null || exp < System.currentTimeMillis()) {
+            return null;
+        }
+        return payload;
+    }
+
+    private byte[] sign(String body) {
+        return macHolder.get().doFinal(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.User;
+import com.hmdp.mapper.UserMapper;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 用户资料缓存，批量查询：一次MGET + 未命中部分一次listByIds
+ */
+@Component
+public class UserProfileCache {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    public UserDTO getUser(Long id) {
+        return getUsers(Collections.singletonList(id)).get(id);
+    }
+
+    /**
+     * 批量查询用户资料，不存在的用户不在返回结果中
+     */
+    public Map<Long, UserDTO> getUsers(Collection<Long> ids) {
+        List<Long> userIds = ids.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = new HashMap<>(userIds.size());
+        if (userIds.isEmpty()) {
+            return users;
+        }
+        List<String> cached = stringRedisTemplate.opsForValue().multiGet(
+                userIds.stream().map(id -> CACHE_USER_KEY + id).collect(Collectors.toList()));
+        List<Long> misses = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            String json = cached == null ? null : cached.get(i);
+            if (StrUtil.isNotBlank(json)) {
+                users.put(userIds.get(i), JSONUtil.toBean(json, UserDTO.class));
+            } else if (json == null) {
+                misses.add(userIds.get(i));
+            }
+            //空字符串是缓存的不存在用户
+        }
+        if (misses.isEmpty()) {
+            return users;
+        }
+        Map<Long, UserDTO> loaded = userMapper.selectBatchIds(misses).stream()
+                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)));
+        users.putAll(loaded);
+        // 回写缓存，不存在的用户缓存空值
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long id : misses) {
+                UserDTO user = loaded.get(id);
+                if (user != null) {
+                    conn.setEx(CACHE_USER_KEY + id, TimeUnit.MINUTES.toSeconds(CACHE_USER_TTL), JSONUtil.toJsonStr(user));
+                } else {
+                    conn.setEx(CACHE_USER_KEY + id, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), "");
+                }
+            }
+            return null;
+        });
+        return users;
+    }
+
+    /**
+     * 用户资料修改后删除缓存
+     */
+    public void evict(Long id) {
+        cacheInvalidator.invalidate(CACHE_USER_KEY + id, CACHE_USER_INFO_KEY + id);
+    }
+}
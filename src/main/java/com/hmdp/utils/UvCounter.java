@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * UV统计：每个对象每天一个HyperLogLog，uv:{type}:{id}:{yyyyMMdd}
+ * 访问记录先进入本地缓冲，定时用pipeline批量PFADD，不占用请求的网络往返
+ */
+@Slf4j
+@Component
+public class UvCounter {
+
+    public static final String TYPE_SHOP = "shop";
+    public static final String TYPE_BLOG = "blog";
+
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.BASIC_ISO_DATE;
+
+    //缓冲上限，超出时丢弃，避免redis故障时内存无限增长
+    private static final int MAX_BUFFER_SIZE = 100000;
+    private static final int BATCH_SIZE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Queue<String[]> buffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger bufferSize = new AtomicInteger();
+
+    //可信的反向代理/负载均衡地址，只有来自这些地址的请求才采信X-Forwarded-For
+    @Value("${hmdp.trusted-proxies:}")
+    private Set<String> trustedProxies;
+
+    /**
+     * 记录一次访问，登录用户按用户id去重，未登录按客户端ip
+     */
+    public void record(String type, Long id, HttpServletRequest request) {
+        if (bufferSize.incrementAndGet() > MAX_BUFFER_SIZE) {
+            bufferSize.decrementAndGet();
+            return;
+        }
+        UserDTO user = UserHolder.getUser();
+        String visitor = user != null ? "u" + user.getId() : "ip" + clientIp(request);
+        buffer.offer(new String[]{dayKey(type, id, LocalDate.now()), visitor});
+    }
+
+    /**
+     * 客户端ip：直连地址是可信代理时，从X-Forwarded-For末尾向前跳过可信代理，取第一个不可信的地址
+     * 直连地址不可信时X-Forwarded-For可以伪造，直接使用直连地址
+     */
+    private String clientIp(HttpServletRequest request) {
+        String ip = request.getRemoteAddr();
+        if (!trustedProxies.contains(ip)) {
+            return ip;
+        }
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isBlank(forwarded)) {
+            return ip;
+        }
+        List<String> hops = StrUtil.split(forwarded, ',', true, true);
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            ip = hops.get(i);
+            if (!trustedProxies.contains(ip)) {
+                return ip;
+            }
+        }
+        return ip;
+    }
+
+    /**
+     * 当天和最近7天（含当天）的UV
+     */
+    public Map<String, Long> count(String type, Long id) {
+        LocalDate today = LocalDate.now();
+        String todayKey = dayKey(type, id, today);
+        // 之前6天的数据不再变化，合并结果缓存到当天结束
+        String weekKey = UV_KEY + type + ":" + id + ":w:" + today.format(DAY_FORMATTER);
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(weekKey))) {
+            String[] days = new String[6];
+            for (int i = 1; i <= 6; i++) {
+                days[i - 1] = dayKey(type, id, today.minusDays(i));
+            }
+            stringRedisTemplate.opsForHyperLogLog().union(weekKey, days);
+            stringRedisTemplate.expire(weekKey, 1, TimeUnit.DAYS);
+        }
+        Map<String, Long> uv = new LinkedHashMap<>();
+        uv.put("daily", stringRedisTemplate.opsForHyperLogLog().size(todayKey));
+        uv.put("weekly", stringRedisTemplate.opsForHyperLogLog().size(weekKey, todayKey));
+        return uv;
+    }
+
+    @Scheduled(fixedDelay = 1000L)
+    public void flush() {
+        while (!buffer.isEmpty()) {
+            // 同一个key的访客合并成一条PFADD
+            Map<String, List<String>> batch = new HashMap<>();
+            String[] entry;
+            int n = 0;
+            while (n < BATCH_SIZE && (entry = buffer.poll()) != null) {
+                batch.computeIfAbsent(entry[0], k -> new ArrayList<>()).add(entry[1]);
+                n++;
+            }
+            bufferSize.addAndGet(-n);
+            try {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    batch.forEach((key, visitors) -> {
+                        conn.pfAdd(key, visitors.toArray(new String[0]));
+                        conn.expire(key, TimeUnit.DAYS.toSeconds(UV_TTL));
+                    });
+                    return null;
+                });
+            } catch (Exception e) {
+                // UV是统计数据，写入失败直接丢弃
+                log.warn("UV写入失败，丢弃{}条访问记录", n, e);
+                return;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flush();
+    }
+
+    private static String dayKey(String type, Long id, LocalDate day) {
+        return UV_KEY + type + ":" + id + ":" + day.format(DAY_FORMATTER);
+    }
+}
@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 短信验证码：签发和校验各一次lua调用完成，带重发间隔、每日上限和失败次数限制
+ */
+@Component
+public class VerifyCodeClient {
+
+    public static final int ISSUE_OK = 0;
+    public static final int ISSUE_TOO_FREQUENT = 1;
+    public static final int ISSUE_DAILY_LIMIT = 2;
+
+    public static final int VERIFY_MISMATCH = 0;
+    public static final int VERIFY_OK = 1;
+    public static final int VERIFY_EXPIRED = 2;
+    public static final int VERIFY_LOCKED = 3;
+
+    private static final DefaultRedisScript<Long> ISSUE_SCRIPT;
+    private static final DefaultRedisScript<List> VERIFY_SCRIPT;
+    static {
+        ISSUE_SCRIPT = new DefaultRedisScript<>();
+        ISSUE_SCRIPT.setLocation(new ClassPathResource("code_issue.lua"));
+        ISSUE_SCRIPT.setResultType(Long.class);
+        VERIFY_SCRIPT = new DefaultRedisScript<>();
+        VERIFY_SCRIPT.setLocation(new ClassPathResource("code_verify.lua"));
+        VERIFY_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //统计
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder tooFrequent = new LongAdder();
+    private final LongAdder dailyLimited = new LongAdder();
+    private final LongAdder verifyOk = new LongAdder();
+    private final LongAdder verifyMismatch = new LongAdder();
+    private final LongAdder verifyExpired = new LongAdder();
+    private final LongAdder verifyLocked = new LongAdder();
+
+    @Data
+    @AllArgsConstructor
+    public static class IssueResult {
+        private int status;
+        private String code;
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class VerifyResult {
+        private int status;
+        //校验成功时附加key的值，不存在为null
+        private String attachment;
+    }
+
+    /**
+     * 签发验证码
+     */
+    public IssueResult issue(String phone) {
+        String code = RandomUtil.randomNumbers(6);
+        long endOfDay = Duration.between(LocalDateTime.now(), LocalDate.now().plusDays(1).atStartOfDay()).getSeconds();
+        Long status = stringRedisTemplate.execute(
+                ISSUE_SCRIPT,
+                Arrays.asList(LOGIN_CODE_KEY + phone, LOGIN_CODE_LOCK_KEY + phone,
+                        LOGIN_CODE_DAILY_KEY + phone, LOGIN_CODE_ATTEMPT_KEY + phone),
+                code,
+                String.valueOf(TimeUnit.MINUTES.toSeconds(LOGIN_CODE_TTL)),
+                String.valueOf(LOGIN_CODE_INTERVAL),
+                String.valueOf(LOGIN_CODE_DAILY_MAX),
+                String.valueOf(Math.max(endOfDay, 1L))
+        );
+        int result = status == null ? ISSUE_TOO_FREQUENT : status.intValue();
+        switch (result) {
+            case ISSUE_OK:
+                issued.increment();
+                return new IssueResult(ISSUE_OK, code);
+            case ISSUE_DAILY_LIMIT:
+                dailyLimited.increment();
+                break;
+            default:
+                tooFrequent.increment();
+        }
+        return new IssueResult(result, null);
+    }
+
+    /**
+     * 校验验证码，成功后验证码被删除
+     * @param attachKey 校验成功时顺带读取的key
+     */
+    public VerifyResult verify(String phone, String code, String attachKey) {
+        List<Object> result = stringRedisTemplate.execute(
+                VERIFY_SCRIPT,
+                Arrays.asList(LOGIN_CODE_KEY + phone, LOGIN_CODE_ATTEMPT_KEY + phone, attachKey),
+                code,
+                String.valueOf(LOGIN_CODE_MAX_ATTEMPTS),
+                String.valueOf(TimeUnit.MINUTES.toSeconds(LOGIN_CODE_TTL))
+        );
+        int status = result == null || result.isEmpty() ? VERIFY_EXPIRED : ((Long) result.get(0)).intValue();
+        switch (status) {
+            case VERIFY_OK:
+                verifyOk.increment();
+                String attachment = result.size() > 1 ? (String) result.get(1) : null;
+                return new VerifyResult(VERIFY_OK, attachment == null || attachment.isEmpty() ? null : attachment);
+            case VERIFY_MISMATCH:
+                verifyMismatch.increment();
+                break;
+            case VERIFY_LOCKED:
+                verifyLocked.increment();
+                break;
+            default:
+                verifyExpired.increment();
+        }
+        return new VerifyResult(status, null);
+    }
+
+    public Map<String, Long> metrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("issued", issued.sum());
+        metrics.put("tooFrequent", tooFrequent.sum());
+        metrics.put("dailyLimited", dailyLimited.sum());
+        metrics.put("verifyOk", verifyOk.sum());
+        metrics.put("verifyMismatch", verifyMismatch.sum());
+        metrics.put("verifyExpired", verifyExpired.sum());
+        metrics.put("verifyLocked", verifyLocked.sum());
+        return metrics;
+    }
+}
@@ -0,0 +1,47 @@
+-- 点赞/取消点赞切换，同时累计点赞数增量并更新热度榜
+-- KEYS[1]: 博文点赞集合key
+-- KEYS[2]: 点赞数增量hash
+-- KEYS[3]: 热度榜key
+-- ARGV[1]: 用户id
+-- ARGV[2]: 当前时间戳(毫秒)
+-- ARGV[3]: 博文id
+-- ARGV[4]: 热度计算的起始时间(秒)
+-- ARGV[5]: 热度半衰期(秒)
+-- ARGV[6]: 博文发布时间戳(毫秒)，热度不低于只有发布时间时的基础分
+-- 热度分数 = log2(Σ 2^(t/半衰期))，t为博文发布和每次点赞的时间，越新的互动权重越高
+-- 返回 {1} 点赞成功；{0} 取消点赞
+local function units(millis)
+    return (tonumber(millis) / 1000 - tonumber(ARGV[4])) / tonumber(ARGV[5])
+end
+local LN2 = math.log(2)
+local base = units(ARGV[6])
+
+local score = redis.call('zscore', KEYS[1], ARGV[1])
+local hot = redis.call('zscore', KEYS[3], ARGV[3])
+if score then
+    redis.call('zrem', KEYS[1], ARGV[1])
+    redis.call('hincrby', KEYS[2], ARGV[3], -1)
+    -- 从热度中扣除这次点赞的权重，不低于基础分
+    -- 热度榜重建或截断后再进入时，分数中可能不含这次点赞的权重，此时回到基础分
+    if hot then
+        local h = tonumber(hot)
+        local d = 1 - 2 ^ (units(score) - h)
+        local s = base
+        if d > 1e-12 then
+            s = math.max(h + math.log(d) / LN2, base)
+        end
+        redis.call('zadd', KEYS[3], s, ARGV[3])
+    end
+    return {0}
+end
+redis.call('zadd', KEYS[1], ARGV[2], ARGV[1])
+redis.call('hincrby', KEYS[2], ARGV[3], 1)
+-- 叠加这次点赞的权重，不在榜中时从基础分开始叠加
+local now = units(ARGV[2])
+local h = base
+if hot then
+    h = tonumber(hot)
+end
+local m = math.max(h, now)
+redis.call('zadd', KEYS[3], m + math.log(1 + 2 ^ (math.min(h, now) - m)) / LN2, ARGV[3])
+return {1}
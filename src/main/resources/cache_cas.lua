@@ -0,0 +1,18 @@
+-- 按版本计数写入缓存：加载数据前读到的版本与当前版本一致才写入
+-- 数据修改提交后版本计数加1，期间读到旧数据的重建请求会因版本不一致放弃写入，缓存key被删除后同样生效
+-- KEYS[1]: 缓存key
+-- KEYS[2]: 版本计数key，永不删除
+-- ARGV[1]: 要写入的值
+-- ARGV[2]: 加载数据前读到的版本，版本计数不存在时为0
+-- ARGV[3]: 有效期(秒)，0表示不设置
+-- 返回 1 写入；0 版本已变化，放弃写入
+local ver = redis.call('get', KEYS[2]) or '0'
+if ver ~= ARGV[2] then
+    return 0
+end
+if tonumber(ARGV[3]) > 0 then
+    redis.call('set', KEYS[1], ARGV[1], 'EX', ARGV[3])
+else
+    redis.call('set', KEYS[1], ARGV[1])
+end
+return 1
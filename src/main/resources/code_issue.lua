@@ -0,0 +1,24 @@
+-- 签发验证码，同时校验重发间隔和每日上限
+-- KEYS[1]: 验证码key
+-- KEYS[2]: 重发间隔锁key
+-- KEYS[3]: 每日发送次数key
+-- KEYS[4]: 校验失败次数key
+-- ARGV[1]: 验证码
+-- ARGV[2]: 验证码有效期(秒)
+-- ARGV[3]: 重发间隔(秒)
+-- ARGV[4]: 每日上限
+-- ARGV[5]: 距离当天结束的秒数
+-- 返回 0 成功；1 发送过于频繁；2 超过每日上限
+if redis.call('exists', KEYS[2]) == 1 then
+    return 1
+end
+if tonumber(redis.call('get', KEYS[3]) or '0') >= tonumber(ARGV[4]) then
+    return 2
+end
+redis.call('set', KEYS[1], ARGV[1], 'EX', ARGV[2])
+redis.call('del', KEYS[4])
+redis.call('set', KEYS[2], '1', 'EX', ARGV[3])
+if redis.call('incr', KEYS[3]) == 1 then
+    redis.call('expire', KEYS[3], ARGV[5])
+end
+return 0
@@ -0,0 +1,25 @@
+-- 校验验证码：失败计数，超过次数作废，成功后删除；成功时顺带读取一个附加key
+-- KEYS[1]: 验证码key
+-- KEYS[2]: 校验失败次数key
+-- KEYS[3]: 附加读取的key
+-- ARGV[1]: 用户提交的验证码
+-- ARGV[2]: 最大失败次数
+-- ARGV[3]: 失败次数有效期(秒)
+-- 返回 {0} 验证码错误；{1, 附加key的值或''} 成功；{2} 验证码不存在或已过期；{3} 失败次数过多，验证码已作废
+local code = redis.call('get', KEYS[1])
+if not code then
+    return {2}
+end
+if code ~= ARGV[1] then
+    local attempts = redis.call('incr', KEYS[2])
+    if attempts == 1 then
+        redis.call('expire', KEYS[2], ARGV[3])
+    end
+    if attempts >= tonumber(ARGV[2]) then
+        redis.call('del', KEYS[1], KEYS[2])
+        return {3}
+    end
+    return {0}
+end
+redis.call('del', KEYS[1], KEYS[2])
+return {1, redis.call('get', KEYS[3]) or ''}
@@ -0,0 +1,11 @@
+-- 关注/取关后调整一个用户的关注数或粉丝数，并把计数的版本加1使正在进行的加载失效
+-- 计数未加载时跳过，等待下次查询时从数据库加载
+-- KEYS[1]: 用户的计数hash
+-- KEYS[2]: 计数hash的版本计数key
+-- ARGV[1]: 字段，followee或fans
+-- ARGV[2]: 增量，1或-1
+if redis.call('exists', KEYS[1]) == 1 then
+    redis.call('hincrby', KEYS[1], ARGV[1], ARGV[2])
+end
+redis.call('incr', KEYS[2])
+return 1
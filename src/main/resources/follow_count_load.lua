@@ -0,0 +1,17 @@
+-- 计数未加载时写入从数据库统计的关注数、粉丝数并设置有效期
+-- 统计期间发生过关注/取关(版本计数已变化)时放弃写入，避免写入过期的计数
+-- KEYS[1]: 用户的计数hash
+-- KEYS[2]: 计数hash的版本计数key
+-- ARGV[1]: 统计前读到的版本，版本计数不存在时为0
+-- ARGV[2]: 有效期(秒)
+-- ARGV[3]: 关注数
+-- ARGV[4]: 粉丝数
+-- 返回 {关注数, 粉丝数}；版本已变化返回nil
+if redis.call('exists', KEYS[1]) == 0 then
+    if (redis.call('get', KEYS[2]) or '0') ~= ARGV[1] then
+        return false
+    end
+    redis.call('hmset', KEYS[1], 'followee', ARGV[3], 'fans', ARGV[4])
+    redis.call('expire', KEYS[1], ARGV[2])
+end
+return redis.call('hmget', KEYS[1], 'followee', 'fans')
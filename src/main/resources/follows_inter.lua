@@ -0,0 +1,10 @@
+-- 关注集合求交集，集合在加载后过期时返回nil由调用方重新加载，避免把过期当成没有关注
+-- KEYS[1..n]: 参与求交集的集合
+-- ARGV[1]: 前几个key必须存在（已加载的关注集合）
+-- 返回 交集成员；必须存在的集合已过期返回nil
+for i = 1, tonumber(ARGV[1]) do
+    if redis.call('exists', KEYS[i]) == 0 then
+        return false
+    end
+end
+return redis.call('sinter', unpack(KEYS))
@@ -0,0 +1,20 @@
+-- 关注集合未加载时写入从数据库读到的关注列表并设置有效期
+-- 读取数据库期间发生过关注/取关(版本计数已变化)时放弃写入，避免写入过期的关注关系
+-- KEYS[1]: 关注集合key
+-- KEYS[2]: 关注集合的版本计数key
+-- ARGV[1]: 读取数据库前读到的版本，版本计数不存在时为0
+-- ARGV[2]: 有效期(秒)
+-- ARGV[3..n]: 关注的用户id，含占位成员
+-- 返回 1 已加载；0 版本已变化，放弃写入
+if redis.call('exists', KEYS[1]) == 1 then
+    return 1
+end
+if (redis.call('get', KEYS[2]) or '0') ~= ARGV[1] then
+    return 0
+end
+-- 分批SADD，避免unpack参数过多
+for i = 3, #ARGV, 1000 do
+    redis.call('sadd', KEYS[1], unpack(ARGV, i, math.min(i + 999, #ARGV)))
+end
+redis.call('expire', KEYS[1], ARGV[2])
+return 1
@@ -0,0 +1,15 @@
+-- 关注/取关后同步关注集合并把版本计数加1
+-- 集合未加载时不写入，避免生成只有一个成员的不完整集合，等待下次读取时从数据库加载
+-- KEYS[1]: 关注集合key
+-- KEYS[2]: 关注集合的版本计数key
+-- ARGV[1]: 1关注，-1取关
+-- ARGV[2]: 被关注的用户id
+if redis.call('exists', KEYS[1]) == 1 then
+    if ARGV[1] == '1' then
+        redis.call('sadd', KEYS[1], ARGV[2])
+    else
+        redis.call('srem', KEYS[1], ARGV[2])
+    end
+end
+redis.call('incr', KEYS[2])
+return 1
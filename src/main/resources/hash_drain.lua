@@ -0,0 +1,7 @@
+-- 取出hash中的全部内容并删除
+-- KEYS[1]: hash key
+local entries = redis.call('hgetall', KEYS[1])
+if #entries > 0 then
+    redis.call('del', KEYS[1])
+end
+return entries
@@ -0,0 +1,11 @@
+-- 写入登录会话并设置有效期，同时把token记入用户的会话索引
+-- KEYS[1]: 登录用户key
+-- KEYS[2]: 用户的会话token集合key
+-- ARGV[1]: 有效期(秒)
+-- ARGV[2]: token
+-- ARGV[3..n]: field1, value1, field2, value2 ...
+-- 返回 会话索引中的token数，超过阈值时由调用方清理已过期的会话
+redis.call('hmset', KEYS[1], unpack(ARGV, 3))
+redis.call('expire', KEYS[1], ARGV[1])
+redis.call('sadd', KEYS[2], ARGV[2])
+return redis.call('scard', KEYS[2])
@@ -0,0 +1,14 @@
+-- 查询登录用户，并在剩余有效期低于阈值时续期，一次往返完成
+-- KEYS[1]: 登录用户的key
+-- ARGV[1]: 完整有效期(秒)
+-- ARGV[2]: 续期阈值(秒)，剩余有效期低于该值才续期
+local user = redis.call('hgetall', KEYS[1])
+if #user == 0 then
+    return user
+end
+-- ttl为-1表示没有过期时间，同样需要补上
+local ttl = redis.call('ttl', KEYS[1])
+if ttl < tonumber(ARGV[2]) then
+    redis.call('expire', KEYS[1], ARGV[1])
+end
+return user
@@ -0,0 +1,9 @@
+-- 会话存在时更新其中的用户资料；已过期的会话不写入，避免生成没有有效期的会话
+-- KEYS[1]: 登录会话key
+-- ARGV[1..n]: field1, value1, field2, value2 ...
+-- 返回 1 已更新；0 会话不存在
+if redis.call('exists', KEYS[1]) == 0 then
+    return 0
+end
+redis.call('hmset', KEYS[1], unpack(ARGV))
+return 1
@@ -0,0 +1,15 @@
+-- 补签：校验本月补签次数上限和当天是否已签到，通过后同时写入签到和补签记录，一次原子完成
+-- KEYS[1]: 当月签到bitmap
+-- KEYS[2]: 当月补签bitmap
+-- ARGV[1]: 补签日期的offset
+-- ARGV[2]: 每月补签上限
+-- 返回 0 成功；1 当天已签到；2 补签次数已用完
+if redis.call('bitcount', KEYS[2]) >= tonumber(ARGV[2]) then
+    return 2
+end
+if redis.call('getbit', KEYS[1], ARGV[1]) == 1 then
+    return 1
+end
+redis.call('setbit', KEYS[1], ARGV[1], 1)
+redis.call('setbit', KEYS[2], ARGV[1], 1)
+return 0
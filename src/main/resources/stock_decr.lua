@@ -0,0 +1,6 @@
+-- 库存已加载到redis时扣减1，未加载时跳过，避免凭空生成负数库存
+-- KEYS[1]: 秒杀库存key
+if redis.call('exists', KEYS[1]) == 1 then
+    return redis.call('decr', KEYS[1])
+end
+return -1
@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.codec.Base64;
+import com.hmdp.dto.CursorResult;
+import com.hmdp.dto.Result;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PageCursorTest {
+
+    private static List<Long> ids(long from, long to) {
+        return LongStream.rangeClosed(from, to).boxed().collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    @Test
+    void encodeDecodeRoundTrip() {
+        assertEquals(123456789012345L, PageCursor.decode(PageCursor.encode(123456789012345L)));
+        assertEquals(-1L, PageCursor.decode(PageCursor.encode(-1L)));
+    }
+
+    @Test
+    void blankCursorIsFirstPage() {
+        assertNull(PageCursor.decode(null));
+        assertNull(PageCursor.decode(""));
+        assertNull(PageCursor.decode("  "));
+    }
+
+    @Test
+    void invalidCursorIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> PageCursor.decode("not a cursor"));
+        // 合法base64但前缀不对
+        assertThrows(IllegalArgumentException.class, () -> PageCursor.decode(Base64.encodeUrlSafe("x:1")));
+        // 前缀正确但不是数字
+        assertThrows(IllegalArgumentException.class, () -> PageCursor.decode(Base64.encodeUrlSafe("id:abc")));
+    }
+
+    @Test
+    void nextTrimsExtraRowAndPointsAtLastKept() {
+        List<Long> rows = ids(1, 11);
+        String next = PageCursor.next(rows, 10, Function.identity());
+        assertEquals(ids(1, 10), rows);
+        assertEquals(10L, PageCursor.decode(next));
+    }
+
+    @Test
+    void nextReturnsNullOnLastPage() {
+        List<Long> rows = ids(1, 10);
+        assertNull(PageCursor.next(rows, 10, Function.identity()));
+        assertEquals(10, rows.size());
+        assertNull(PageCursor.next(new ArrayList<>(), 10, Function.identity()));
+    }
+
+    @Test
+    void pageWalksAllRowsWithoutGapsOrDuplicates() {
+        List<Long> table = ids(1, 25);
+        List<Long> seen = new ArrayList<>();
+        String cursor = "";
+        int pages = 0;
+        do {
+            Result result = PageCursor.page(cursor, 10, Function.identity(),
+                    (lastId, limit) -> table.stream()
+                            .filter(id -> lastId == null || id > lastId)
+                            .limit(limit)
+                            .collect(Collectors.toCollection(ArrayList::new)),
+                    null);
+            assertTrue(result.getSuccess());
+            CursorResult<?> page = (CursorResult<?>) result.getData();
+            page.getList().forEach(id -> seen.add((Long) id));
+            cursor = page.getCursor();
+            pages++;
+        } while (cursor != null);
+        assertEquals(table, seen);
+        assertEquals(3, pages);
+    }
+
+    @Test
+    void pageParsesCursorOnceAndPassesLimitPlusOne() {
+        List<Object[]> calls = new ArrayList<>();
+        PageCursor.page(PageCursor.encode(42L), 5, Function.identity(),
+                (lastId, limit) -> {
+                    calls.add(new Object[]{lastId, limit});
+                    return new ArrayList<Long>();
+                }, null);
+        assertEquals(1, calls.size());
+        assertArrayEquals(new Object[]{42L, 6}, calls.get(0));
+    }
+
+    @Test
+    void pageRejectsInvalidCursorWithoutQuerying() {
+        AtomicInteger queries = new AtomicInteger();
+        Result result = PageCursor.page("@@@", 10, Function.<Long>identity(),
+                (lastId, limit) -> {
+                    queries.incrementAndGet();
+                    return new ArrayList<>();
+                }, null);
+        assertFalse(result.getSuccess());
+        assertEquals(0, queries.get());
+    }
+
+    @Test
+    void fillerRunsOnlyOnNonEmptyTrimmedPage() {
+        List<List<Long>> filled = new ArrayList<>();
+        PageCursor.page("", 2, Function.identity(),
+                (lastId, limit) -> new ArrayList<>(Arrays.asList(1L, 2L, 3L)), filled::add);
+        PageCursor.page("", 2, Function.identity(),
+                (lastId, limit) -> new ArrayList<>(Collections.<Long>emptyList()), filled::add);
+        assertEquals(1, filled.size());
+        assertEquals(Arrays.asList(1L, 2L), filled.get(0));
+    }
+}
@@ -0,0 +1,195 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * lua脚本集成测试，需要本地redis(127.0.0.1:6379)，连不上时跳过
+ */
+class RedisScriptTest {
+
+    private static final String PREFIX = "test:script:";
+
+    private static LettuceConnectionFactory factory;
+    private static StringRedisTemplate redis;
+
+    @BeforeAll
+    static void connect() {
+        factory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", 6379));
+        factory.afterPropertiesSet();
+        boolean available;
+        try {
+            factory.getConnection().close();
+            available = true;
+        } catch (Exception e) {
+            available = false;
+        }
+        Assumptions.assumeTrue(available, "redis不可用，跳过lua脚本测试");
+        redis = new StringRedisTemplate(factory);
+    }
+
+    @AfterAll
+    static void disconnect() {
+        if (factory != null) {
+            factory.destroy();
+        }
+    }
+
+    @AfterEach
+    void cleanUp() {
+        // 版本计数key形如{test:script:...}:ver，不以PREFIX开头，需单独匹配
+        for (String pattern : new String[]{PREFIX + "*", "{" + PREFIX + "*"}) {
+            Set<String> keys = redis.keys(pattern);
+            if (keys != null && !keys.isEmpty()) {
+                redis.delete(keys);
+            }
+        }
+    }
+
+    private static <T> DefaultRedisScript<T> script(String name, Class<T> type) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(name));
+        script.setResultType(type);
+        return script;
+    }
+
+    // ------------------------------ cache_cas.lua ------------------------------
+
+    private static final DefaultRedisScript<Long> CAS = script("cache_cas.lua", Long.class);
+
+    private Long cas(String key, String value, String version, long ttl) {
+        return redis.execute(CAS, Arrays.asList(key, CacheClient.versionKey(key)), value, version, String.valueOf(ttl));
+    }
+
+    @Test
+    void casWritesWhenVersionUnchanged() {
+        String key = PREFIX + "cache:1";
+        assertEquals(1L, cas(key, "v1", "0", 0));
+        assertEquals("v1", redis.opsForValue().get(key));
+        assertEquals(-1L, redis.getExpire(key));
+    }
+
+    @Test
+    void casRejectsWriteAfterInvalidation() {
+        String key = PREFIX + "cache:2";
+        assertEquals(1L, cas(key, "old", "0", 0));
+        // 读到版本0后数据被修改：版本加1并删除缓存
+        redis.opsForValue().increment(CacheClient.versionKey(key));
+        redis.delete(key);
+        assertEquals(0L, cas(key, "stale", "0", 0));
+        assertNull(redis.opsForValue().get(key));
+        assertEquals(1L, cas(key, "fresh", "1", 0));
+        assertEquals("fresh", redis.opsForValue().get(key));
+    }
+
+    @Test
+    void casAppliesTtl() {
+        String key = PREFIX + "cache:3";
+        assertEquals(1L, cas(key, "v", "0", 60));
+        Long ttl = redis.getExpire(key);
+        assertTrue(ttl != null && ttl > 0 && ttl <= 60);
+    }
+
+    // ------------------------------ blog_like.lua ------------------------------
+
+    private static final DefaultRedisScript<List> LIKE = script("blog_like.lua", List.class);
+
+    private static final String LIKED = PREFIX + "liked:1";
+    private static final String DELTA = PREFIX + "liked:delta";
+    private static final String HOT = PREFIX + "hot";
+
+    private static double units(long millis) {
+        return (millis / 1000.0 - RedisWorker.BEGIN_TIMESTAMP) / RedisConstants.BLOG_HOT_HALF_LIFE;
+    }
+
+    // log2(2^a + 2^b)，按差值计算避免2^a溢出
+    private static double log2Sum(double a, double b) {
+        double m = Math.max(a, b);
+        return m + Math.log(1 + Math.pow(2, Math.min(a, b) - m)) / Math.log(2);
+    }
+
+    private long like(long userId, long now, long created) {
+        List<?> result = redis.execute(LIKE, Arrays.asList(LIKED, DELTA, HOT),
+                String.valueOf(userId), String.valueOf(now), "1",
+                String.valueOf(RedisWorker.BEGIN_TIMESTAMP), String.valueOf(RedisConstants.BLOG_HOT_HALF_LIFE), String.valueOf(created));
+        return (Long) result.get(0);
+    }
+
+    private double hot() {
+        return redis.opsForZSet().score(HOT, "1");
+    }
+
+    private long delta() {
+        Object value = redis.opsForHash().get(DELTA, "1");
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    @Test
+    void likeTogglesAndCountsDelta() {
+        long created = System.currentTimeMillis() - 3600_000L;
+        long now = System.currentTimeMillis();
+        assertEquals(1L, like(7, now, created));
+        assertEquals(1L, delta());
+        assertNotNull(redis.opsForZSet().score(LIKED, "7"));
+        assertEquals(0L, like(7, now + 1000, created));
+        assertEquals(0L, delta());
+        assertNull(redis.opsForZSet().score(LIKED, "7"));
+    }
+
+    @Test
+    void likeOffBoardStartsFromBaseScore() {
+        long created = System.currentTimeMillis() - 3600_000L;
+        long now = System.currentTimeMillis();
+        like(7, now, created);
+        double expected = log2Sum(units(created), units(now));
+        assertEquals(expected, hot(), 1e-6);
+    }
+
+    @Test
+    void likeThenUnlikeReturnsToBaseScore() {
+        long created = System.currentTimeMillis() - 3600_000L;
+        long now = System.currentTimeMillis();
+        like(7, now, created);
+        like(8, now + 1000, created);
+        like(7, now + 2000, created);
+        like(8, now + 3000, created);
+        assertEquals(units(created), hot(), 1e-6);
+    }
+
+    @Test
+    void unlikeNeverDropsBelowBaseScore() {
+        long created = System.currentTimeMillis() - 3600_000L;
+        long now = System.currentTimeMillis();
+        like(7, now, created);
+        // 热度榜重建后分数中不含这次点赞
+        redis.opsForZSet().add(HOT, "1", units(created));
+        like(7, now + 1000, created);
+        assertEquals(units(created), hot(), 1e-6);
+    }
+
+    @Test
+    void unlikeOffBoardDoesNotAddToBoard() {
+        long created = System.currentTimeMillis() - 3600_000L;
+        long now = System.currentTimeMillis();
+        like(7, now, created);
+        redis.delete(HOT);
+        like(7, now + 1000, created);
+        assertNull(redis.opsForZSet().score(HOT, "1"));
+        assertEquals(Collections.emptySet(), redis.opsForZSet().range(LIKED, 0, -1));
+    }
+}
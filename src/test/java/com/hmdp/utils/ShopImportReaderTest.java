@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShopImportReaderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private List<ShopImportReader.Row> readAll(String body, String contentType) throws IOException {
+        List<ShopImportReader.Row> rows = new ArrayList<>();
+        try (ShopImportReader reader = ShopImportReader.open(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), contentType, objectMapper)) {
+            ShopImportReader.Row row;
+            while ((row = reader.next()) != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static Shop validShop() {
+        return new Shop().setName("茶餐厅").setTypeId(1L).setAddress("大关路1号")
+                .setImages("a.jpg").setX(120.1).setY(30.2);
+    }
+
+    @Test
+    void readsJsonArray() throws IOException {
+        List<ShopImportReader.Row> rows = readAll(
+                "[{\"name\":\"a\",\"typeId\":1},{\"name\":\"b\",\"typeId\":2}]", "application/json");
+        assertEquals(2, rows.size());
+        assertEquals(1, rows.get(0).getIndex());
+        assertEquals("a", rows.get(0).getShop().getName());
+        assertEquals(2L, rows.get(1).getShop().getTypeId());
+        assertNull(rows.get(1).getError());
+    }
+
+    @Test
+    void jsonBadRowDoesNotStopLaterRows() throws IOException {
+        List<ShopImportReader.Row> rows = readAll(
+                "[{\"name\":\"a\",\"typeId\":\"x\"}, 5, [1,2], {\"name\":\"d\"}]", "application/json");
+        assertEquals(4, rows.size());
+        assertEquals("字段格式错误", rows.get(0).getError());
+        assertEquals("数组元素必须是商铺对象", rows.get(1).getError());
+        assertEquals("数组元素必须是商铺对象", rows.get(2).getError());
+        assertEquals(4, rows.get(3).getIndex());
+        assertEquals("d", rows.get(3).getShop().getName());
+    }
+
+    @Test
+    void jsonMustBeArray() {
+        assertThrows(IOException.class, () -> readAll("{\"name\":\"a\"}", "application/json"));
+    }
+
+    @Test
+    void readsCsvWithHeader() throws IOException {
+        List<ShopImportReader.Row> rows = readAll(
+                "name,typeId,x,y\n茶餐厅,1,120.1,30.2\n\n面馆,2,120.2,30.3\n", "text/csv;charset=UTF-8");
+        assertEquals(2, rows.size());
+        assertEquals("茶餐厅", rows.get(0).getShop().getName());
+        assertEquals(120.2, rows.get(1).getShop().getX());
+    }
+
+    @Test
+    void csvBadValueIsRowError() throws IOException {
+        List<ShopImportReader.Row> rows = readAll("name,typeId\na,notanumber\nb,2\n", "text/csv");
+        assertEquals("字段格式错误", rows.get(0).getError());
+        assertNull(rows.get(0).getShop());
+        assertEquals(2L, rows.get(1).getShop().getTypeId());
+    }
+
+    @Test
+    void validShopPassesAndSystemFieldsAreReset() {
+        Shop shop = validShop().setId(99L).setSold(1000).setComments(50);
+        assertNull(ShopImportReader.validate(shop));
+        assertNull(shop.getId());
+        assertEquals(0, shop.getSold());
+        assertEquals(0, shop.getComments());
+        assertEquals(0, shop.getScore());
+    }
+
+    @Test
+    void westernAndSouthernHemispheresAreAccepted() {
+        assertNull(ShopImportReader.validate(validShop().setX(-73.98).setY(40.75)));
+        assertNull(ShopImportReader.validate(validShop().setX(151.21).setY(-33.87)));
+        assertNull(ShopImportReader.validate(validShop().setX(-180.0).setY(-85.05112878)));
+    }
+
+    @Test
+    void invalidShopsAreRejected() {
+        assertNotNull(ShopImportReader.validate(validShop().setName(" ")));
+        assertNotNull(ShopImportReader.validate(validShop().setName(new String(new char[129]).replace('\0', 'a'))));
+        assertNotNull(ShopImportReader.validate(validShop().setTypeId(null)));
+        assertNotNull(ShopImportReader.validate(validShop().setAddress(null)));
+        assertNotNull(ShopImportReader.validate(validShop().setImages(null)));
+        assertNotNull(ShopImportReader.validate(validShop().setX(null)));
+        assertNotNull(ShopImportReader.validate(validShop().setX(181.0)));
+        assertNotNull(ShopImportReader.validate(validShop().setX(-180.5)));
+        // GEO不支持的纬度
+        assertNotNull(ShopImportReader.validate(validShop().setY(86.0)));
+        assertNotNull(ShopImportReader.validate(validShop().setY(-85.1)));
+        assertNotNull(ShopImportReader.validate(validShop().setScore(51)));
+        assertNotNull(ShopImportReader.validate(validShop().setScore(-1)));
+    }
+}